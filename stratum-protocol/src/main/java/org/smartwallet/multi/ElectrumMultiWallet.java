@@ -49,6 +49,8 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
     public static final String EXTENSION_ID = "org.smartcolors.electrum";
 
     private static final Map<Sha256Hash, Transaction> EMPTY_POOL = Maps.newHashMap();
+    private static final long CACHE_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long CACHE_DISK_BYTES = 64 * 1024 * 1024;
     public static final int CHECKPOINT_TIME_BUFFER = 3600 * 24 * 1;
     private final File baseDirectory;
     private HeadersStore store;
@@ -60,8 +62,7 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
     private final ConcurrentMap<Sha256Hash, SettableFuture<Transaction>> pendingDownload;
     private SortedSet<TransactionWithHeight> pendingBlock;
     private TxConfidenceTable confidenceTable;
-    private BlockingQueue<StratumMessage> addressQueue;
-    private ExecutorService addressChangeService;
+    private ThreadModel threadModel = ThreadModel.getDefault();
     private transient CopyOnWriteArrayList<ListenerRegistration<MultiWalletEventListener>> eventListeners;
     private StratumChain chain;
     private boolean isChainSynced;
@@ -94,6 +95,12 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
         this(wallet, null);
     }
     
+    /** Run the client, chain and address listener with this model.  Must be set before starting. */
+    public void setThreadModel(ThreadModel threadModel) {
+        checkState(client == null);
+        this.threadModel = checkNotNull(threadModel);
+    }
+
     @Override
     public void addEventListener(MultiWalletEventListener listener, Executor executor) {
         eventListeners.add(new ListenerRegistration<>(listener, executor));
@@ -354,19 +361,18 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
     public void startAsync() {
         checkState(client == null);
         checkState(chain == null);
-        checkState(addressQueue == null);
-        checkState(addressChangeService == null);
 
         client = new StratumClient(wallet.getNetworkParameters());
+        client.setRawResults(true);
+        client.setThreadModel(threadModel);
+        client.setServerHealth(new ServerHealth(new File(baseDirectory, "electrum.servers")));
+        client.setResponseCache(new ResponseCache(CACHE_MEMORY_BYTES, new File(baseDirectory, "electrum.cache"),
+                CACHE_DISK_BYTES));
         store = makeStore();
         chain = makeChain(client);
         chain.addChainListener(this);
         // This won't actually cause any network activity yet.  We prefer network activity on the stratum client thread,
         // especially on Android.
-
-        addressQueue = client.getAddressQueue();
-        listenToAddressQueue(addressQueue);
-
         subscribeToKeys();
         chain.startAsync();
         client.startAsync();
@@ -374,7 +380,8 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
 
     private HeadersStore makeStore() {
         StoredBlock checkpoint = getCheckpoint();
-        return new HeadersStore(wallet.getNetworkParameters(), getChainFile(), checkpoint, initialStore);
+        // Looked up on every transaction and height change, so keep lookups off the file system
+        return new MappedHeadersStore(wallet.getNetworkParameters(), getChainFile(), checkpoint, initialStore);
     }
 
     private StoredBlock getCheckpoint() {
@@ -386,7 +393,9 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
     }
 
     private StratumChain makeChain(StratumClient client) {
-        return new StratumChain(wallet.getNetworkParameters(), store, client);
+        StratumChain chain = new StratumChain(wallet.getNetworkParameters(), store, client);
+        chain.setThreadModel(threadModel);
+        return chain;
     }
 
     private File getChainFile() {
@@ -412,7 +421,7 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
         safeAwaitClientTerminated();
         log.warn("client state is {}", client.state());
         chain.close();
-        doneWithAddressQueue();
+        doneWithAddressCallbacks();
         store.close();
         chain = null;
         client = null;
@@ -447,18 +456,15 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
         }
     }
 
-    // Await for service to terminate.  It should have terminated, since the client should have told it to
-    // shut down.
-    private void doneWithAddressQueue() {
+    // Await for address callbacks to finish.  No new ones are started, since the client has terminated.
+    private void doneWithAddressCallbacks() {
         try {
-            boolean terminated = addressChangeService.awaitTermination(100, TimeUnit.SECONDS);
-            if (!terminated)
-                throw new IllegalStateException("could not stop addressChangeService after 100 sec");
+            boolean done = client.awaitAddressCallbacks(100, TimeUnit.SECONDS);
+            if (!done)
+                throw new IllegalStateException("address callbacks still running after 100 sec");
         } catch (InterruptedException e) {
             Throwables.propagate(e);
         }
-        addressChangeService = null;
-        addressQueue = null;
     }
 
     @Override
@@ -500,7 +506,7 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
         for (final Address address : addresses) {
             final String addressString = address.toString();
             downloadFutures.put(addressString, SettableFuture.<Integer>create());
-            client.subscribe(address);
+            client.subscribe(address, addressListener);
         }
 
         downloadFuture = Futures.allAsList(downloadFutures.values());
@@ -518,42 +524,20 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
         });
     }
 
-    static ThreadFactory historyThreadFactory =
-            new ThreadFactoryBuilder()
-                    .setDaemon(true)
-                    .setNameFormat("address-%d")
-                    .setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
-                        @Override
-                        public void uncaughtException(Thread t, Throwable e) {
-                            log.error("uncaught exception", e);
-                        }
-                    }).build();
-
-    private void listenToAddressQueue(final BlockingQueue<StratumMessage> queue) {
-        if (addressChangeService == null) {
-            addressChangeService = Executors.newSingleThreadExecutor(historyThreadFactory);
-            addressChangeService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    while (true) {
-                        try {
-                            StratumMessage item = queue.take();
-                            if (item.isSentinel()) {
-                                addressChangeService.shutdown();
-                                log.info("sentinel on queue, exiting");
-                                break;
-                            }
-                            log.info(mapper.writeValueAsString(item));
-                            handleAddressQueueItem(item);
-                        } catch (Throwable t) {
-                            log.error("address change service", t);
-                            throw Throwables.propagate(t);
-                        }
-                    }
-                }
-            });
+    // Called for each address separately, in order for the address
+    private final SubscriptionDispatcher.Listener addressListener = new SubscriptionDispatcher.Listener() {
+        @Override
+        public void onMessage(StratumMessage item) {
+            try {
+                // The frame is also in the client's wire trace, if enabled
+                if (log.isDebugEnabled())
+                    log.debug(mapper.writeValueAsString(item));
+                handleAddressQueueItem(item);
+            } catch (JsonProcessingException e) {
+                log.error("address change", e);
+            }
         }
-    }
+    };
 
     @VisibleForTesting
     void handleAddressQueueItem(StratumMessage item) throws JsonProcessingException {
@@ -566,7 +550,7 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
             log.error("got address subscription update with no address");
             return;
         }
-        JsonNode result = item.result;
+        JsonNode result = item.readResult();
         if (result == null)
             result = item.params.get(1);
         if (result.isNull()) {
@@ -682,7 +666,7 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
             public void onSuccess(StratumMessage result) {
                 final List<AddressHistoryItem> history;
                 try {
-                    history = mapper.readValue(mapper.treeAsTokens(result.result), new TypeReference<List<AddressHistoryItem>>() {});
+                    history = result.readResult(new TypeReference<List<AddressHistoryItem>>() {});
                 } catch (IOException e) {
                     log.error("unable to parse history for {}", address);
                     return;
@@ -748,13 +732,13 @@ public class ElectrumMultiWallet extends SmartMultiWallet implements WalletExten
         Futures.addCallback(getFuture, new FutureCallback<StratumMessage>() {
             @Override
             public void onSuccess(StratumMessage result) {
-                String hex = result.result.asText();
-                if (hex.isEmpty()) {
+                byte[] bytes = result.readResultHex();
+                if (bytes.length == 0) {
                     log.error("unable to parse transaction for " + hash);
                     return;
                 }
                 // FIXME check proof
-                Transaction tx = new Transaction(wallet.getParams(), Utils.HEX.decode(hex));
+                Transaction tx = new Transaction(wallet.getParams(), bytes);
                 receive(tx, height);
             }
 
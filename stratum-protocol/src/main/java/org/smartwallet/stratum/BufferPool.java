@@ -0,0 +1,74 @@
+package org.smartwallet.stratum;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of fixed size heap buffers, for outgoing frames and decoded results.
+ *
+ * <p>Buffers that had to grow beyond the pool buffer size are not returned to the pool.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /** @return a cleared buffer */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+    }
+
+    /** @return a cleared buffer with room for at least size bytes, which is not pooled if larger than the pool buffers */
+    ByteBuffer acquire(int size) {
+        return size <= bufferSize ? acquire() : ByteBuffer.allocate(size);
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize)
+            return;
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    /**
+     * An output stream that writes into a pooled buffer, growing it if needed.
+     * Call {@link #toBuffer()} to get the flipped result.
+     */
+    class BufferOutputStream extends OutputStream {
+        private ByteBuffer buffer = acquire();
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            buffer.put(b, off, len);
+        }
+
+        private void ensure(int len) {
+            if (buffer.remaining() >= len)
+                return;
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + len));
+            buffer.flip();
+            larger.put(buffer);
+            release(buffer);
+            buffer = larger;
+        }
+
+        ByteBuffer toBuffer() {
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.smartwallet.stratum;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Outgoing frames in one lane per {@link StratumClient.Priority}.
+ *
+ * <p>Frames are taken from the highest lane that has any, so a ping is not stuck behind a burst of bulk calls.
+ * So that lower lanes still progress, a lane that was passed over {@link #MAX_PASSES} times while it had frames
+ * goes next.  Frames in a lane keep their order.
+ *
+ * <p>Any thread may add.  Only one thread may take.
+ */
+class FrameLanes {
+    static final int MAX_PASSES = 8;
+
+    private final Queue<ByteBuffer>[] lanes;
+    // How often each lane was passed over since it last sent.  Consumer only.
+    private final int[] passes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    FrameLanes() {
+        int count = StratumClient.Priority.values().length;
+        lanes = new Queue[count];
+        for (int i = 0 ; i < count ; i++)
+            lanes[i] = new ConcurrentLinkedQueue<>();
+        passes = new int[count];
+    }
+
+    void add(ByteBuffer frame, StratumClient.Priority priority) {
+        lanes[priority.ordinal()].add(frame);
+    }
+
+    /** @return the next frame to send, or null if there is none */
+    ByteBuffer poll() {
+        // The highest lane is never passed over
+        for (int i = lanes.length - 1 ; i > 0 ; i--) {
+            if (passes[i] >= MAX_PASSES) {
+                passes[i] = 0;
+                ByteBuffer frame = lanes[i].poll();
+                if (frame != null)
+                    return frame;
+            }
+        }
+        for (int i = 0 ; i < lanes.length ; i++) {
+            ByteBuffer frame = lanes[i].poll();
+            if (frame != null) {
+                passes[i] = 0;
+                for (int j = i + 1 ; j < lanes.length ; j++) {
+                    if (!lanes[j].isEmpty())
+                        passes[j]++;
+                }
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    boolean isEmpty() {
+        for (Queue<ByteBuffer> lane : lanes) {
+            if (!lane.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    /** Consumer only */
+    void clear() {
+        for (Queue<ByteBuffer> lane : lanes)
+            lane.clear();
+    }
+}
@@ -0,0 +1,99 @@
+package org.smartwallet.stratum;
+
+import org.bitcoinj.core.Block;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Decoded headers below the tip of a {@link HeadersStore}, by height, evicting the least recently used.
+ *
+ * <p>A cached {@link Block} keeps its hash once computed, so callers that look at the same recent heights over and
+ * over neither decode nor hash them again.
+ *
+ * <p>A reader that decoded a header from the store only caches it if no truncation happened since it started, see
+ * {@link #getGeneration()}, so that a header replaced in a reorg is not cached again.
+ */
+class HeaderCache {
+    @GuardedBy("this")
+    private final LinkedHashMap<Long, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("this")
+    private int maxSize;
+    @GuardedBy("this")
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    HeaderCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+        checkArgument(maxSize >= 0);
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    @GuardedBy("this")
+    private void evict() {
+        Iterator<Long> it = blocks.keySet().iterator();
+        while (blocks.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** Read before decoding a header from the store, and pass to {@link #put(long, Block, long)} */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    @Nullable
+    Block get(long height) {
+        Block block;
+        synchronized (this) {
+            block = blocks.get(height);
+        }
+        if (block == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return block;
+    }
+
+    /** Cache a header decoded by a reader, unless the store was truncated since the generation was read */
+    synchronized void put(long height, Block block, long generation) {
+        if (generation == this.generation)
+            put(height, block);
+    }
+
+    /** Cache a header, by a writer holding the store lock */
+    synchronized void put(long height, Block block) {
+        blocks.put(height, block);
+        evict();
+    }
+
+    /** Drop headers above height.  Called after the store is truncated. */
+    synchronized void truncate(long height) {
+        generation++;
+        for (Iterator<Map.Entry<Long, Block>> it = blocks.entrySet().iterator() ; it.hasNext() ; ) {
+            if (it.next().getKey() > height)
+                it.remove();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+}
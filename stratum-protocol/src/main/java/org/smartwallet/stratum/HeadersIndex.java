@@ -0,0 +1,231 @@
+package org.smartwallet.stratum;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A persistent map from block hash to height, kept by {@link HeadersStore} in a side file.
+ *
+ * <p>An open addressing table with linear probing, mapped into memory.  Entries are keyed by the first eight bytes
+ * of the hash in internal byte order, which are the random end of a block hash.  Different hashes may share a key,
+ * so a height found here must be confirmed against the header.
+ *
+ * <p>The header of the file records the height and tip key the index is complete for.  It is cleared while the
+ * table is being changed, so that an index left half-updated by a crash is rebuilt on open.
+ *
+ * <p>Not thread safe.  The store calls it under its lock.
+ */
+class HeadersIndex {
+    private static final int VERSION = 1;
+    // version, count, height, tip key
+    private static final int HEADER_SIZE = 24;
+    // key, height + 1, where zero marks an empty slot
+    private static final int SLOT_SIZE = 12;
+    static final int MIN_CAPACITY = 1 << 12;
+    private static final long[] NONE = new long[0];
+
+    private final RandomAccessFile randomFile;
+    private final FileChannel channel;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int count;
+    private boolean isDirty;
+
+    HeadersIndex(File file) throws IOException {
+        randomFile = new RandomAccessFile(file, "rw");
+        try {
+            channel = randomFile.getChannel();
+            long size = channel.size();
+            long slots = (size - HEADER_SIZE) / SLOT_SIZE;
+            boolean isValid = size >= HEADER_SIZE + (long) MIN_CAPACITY * SLOT_SIZE
+                    && (size - HEADER_SIZE) % SLOT_SIZE == 0
+                    && slots <= Integer.MAX_VALUE / SLOT_SIZE
+                    && Long.bitCount(slots) == 1;
+            if (isValid) {
+                map((int) slots);
+                isValid = table.getInt(0) == VERSION;
+                count = table.getInt(4);
+            }
+            if (!isValid) {
+                channel.truncate(0);
+                map(MIN_CAPACITY);
+                table.putInt(0, VERSION);
+                count = 0;
+                setDirty();
+            }
+        } catch (IOException e) {
+            randomFile.close();
+            throw e;
+        }
+    }
+
+    /** The index of a headers store file */
+    static File fileFor(File store) {
+        return new File(store.getPath() + ".index");
+    }
+
+    static long key(Sha256Hash hash) {
+        return key(hash.getReversedBytes());
+    }
+
+    /** @param digest a hash in internal byte order, as computed */
+    static long key(byte[] digest) {
+        return ByteBuffer.wrap(digest, 0, 8).getLong();
+    }
+
+    private void map(int slots) throws IOException {
+        // Mapping past the end extends the file
+        table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+        capacity = slots;
+    }
+
+    /** @return the height the index is complete for, or -1 if it has to be rebuilt */
+    long getHeight() {
+        return table.getLong(8);
+    }
+
+    /** @return the key of the top header the index is complete for */
+    long getTipKey() {
+        return table.getLong(16);
+    }
+
+    /** Record that the index is complete up to this height */
+    void commit(long height, long tipKey) {
+        table.putInt(4, count);
+        table.putLong(16, tipKey);
+        table.putLong(8, height);
+        isDirty = false;
+    }
+
+    private void setDirty() {
+        if (!isDirty) {
+            table.putLong(8, -1);
+            isDirty = true;
+        }
+    }
+
+    /** Remove all entries, making room for about this many */
+    void clear(long expected) throws IOException {
+        setDirty();
+        int slots = slotsFor(expected);
+        if (slots > capacity)
+            map(slots);
+        zero();
+        count = 0;
+    }
+
+    private static int slotsFor(long entries) {
+        long slots = MIN_CAPACITY;
+        // Keep the load under three quarters
+        while (entries * 4 >= slots * 3)
+            slots *= 2;
+        return (int) slots;
+    }
+
+    private void zero() {
+        byte[] zeros = new byte[SLOT_SIZE * 1024];
+        ByteBuffer slice = table.duplicate();
+        slice.position(HEADER_SIZE);
+        while (slice.hasRemaining())
+            slice.put(zeros, 0, Math.min(zeros.length, slice.remaining()));
+    }
+
+    private int home(long key) {
+        return (int) key & (capacity - 1);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    void put(long key, long height) throws IOException {
+        setDirty();
+        if ((count + 1) * 4L >= capacity * 3L)
+            grow();
+        insert(key, height);
+        count++;
+    }
+
+    private void insert(long key, long height) {
+        int slot = home(key);
+        while (table.getInt(offset(slot) + 8) != 0)
+            slot = (slot + 1) & (capacity - 1);
+        table.putLong(offset(slot), key);
+        table.putInt(offset(slot) + 8, (int) height + 1);
+    }
+
+    private void grow() throws IOException {
+        long[] keys = new long[count];
+        int[] heights = new int[count];
+        int n = 0;
+        for (int slot = 0 ; slot < capacity ; slot++) {
+            int height = table.getInt(offset(slot) + 8);
+            if (height != 0) {
+                keys[n] = table.getLong(offset(slot));
+                heights[n++] = height - 1;
+            }
+        }
+        map(capacity * 2);
+        zero();
+        for (int i = 0 ; i < n ; i++)
+            insert(keys[i], heights[i]);
+    }
+
+    void remove(long key, long height) {
+        setDirty();
+        for (int slot = home(key) ; table.getInt(offset(slot) + 8) != 0 ; slot = (slot + 1) & (capacity - 1)) {
+            if (table.getLong(offset(slot)) == key && table.getInt(offset(slot) + 8) == height + 1) {
+                shiftInto(slot);
+                count--;
+                return;
+            }
+        }
+    }
+
+    /** Fill the hole left by a removed entry with later entries of the cluster that may not be found otherwise */
+    private void shiftInto(int hole) {
+        int mask = capacity - 1;
+        for (int slot = (hole + 1) & mask ; table.getInt(offset(slot) + 8) != 0 ; slot = (slot + 1) & mask) {
+            int home = home(table.getLong(offset(slot)));
+            // Moves back if its home is not cyclically in (hole, slot]
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                table.putLong(offset(hole), table.getLong(offset(slot)));
+                table.putInt(offset(hole) + 8, table.getInt(offset(slot) + 8));
+                hole = slot;
+            }
+        }
+        table.putLong(offset(hole), 0);
+        table.putInt(offset(hole) + 8, 0);
+    }
+
+    /** @return the heights indexed under this key, usually none or one */
+    long[] find(long key) {
+        long[] heights = NONE;
+        for (int slot = home(key) ; table.getInt(offset(slot) + 8) != 0 ; slot = (slot + 1) & (capacity - 1)) {
+            if (table.getLong(offset(slot)) == key) {
+                heights = Arrays.copyOf(heights, heights.length + 1);
+                heights[heights.length - 1] = table.getInt(offset(slot) + 8) - 1;
+            }
+        }
+        return heights;
+    }
+
+    int size() {
+        return count;
+    }
+
+    void close() throws IOException {
+        try {
+            table.force();
+        } finally {
+            randomFile.close();
+        }
+    }
+}
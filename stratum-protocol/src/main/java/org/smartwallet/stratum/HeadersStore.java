@@ -2,11 +2,14 @@ package org.smartwallet.stratum;
 
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.net.URL;
 import java.nio.ByteBuffer;
@@ -16,6 +19,7 @@ import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Throwables.propagate;
 
@@ -26,11 +30,31 @@ public class HeadersStore {
     private static final Logger log = LoggerFactory.getLogger(HeadersStore.class);
     private static final long HEADER_SIZE = Block.HEADER_SIZE;
     private static final byte[] EMPTY = new byte[(int)HEADER_SIZE];
+    // Headers read at a time when indexing
+    private static final int INDEX_RUN = 2016;
+    public static final int DEFAULT_CACHE_SIZE = 1024;
     protected final NetworkParameters params;
     protected FileChannel channel;
     protected FileLock fileLock = null;
     protected RandomAccessFile randomFile = null;
     protected ReentrantLock lock = Threading.lock("HeadersStore");
+    @GuardedBy("lock") private HeadersIndex hashIndex;
+    // Replaced as a whole under the lock, so readers see a consistent height and header without locking
+    private volatile Tip tip;
+    private final HeaderCache cache = new HeaderCache(DEFAULT_CACHE_SIZE);
+
+    /** The top header, kept in memory so that the tip is never read from the file */
+    protected static class Tip {
+        final long height;
+        final Block header;
+        final Sha256Hash hash;
+
+        Tip(long height, Block header) {
+            this.height = height;
+            this.header = header;
+            this.hash = header.getHash();
+        }
+    }
 
     public HeadersStore(NetworkParameters params, File file, StoredBlock checkpoint, URL initialStore) {
         this.params = params;
@@ -56,7 +80,16 @@ public class HeadersStore {
                     channel.write(ByteBuffer.wrap(header.bitcoinSerialize()), checkpoint.getHeight() * HEADER_SIZE);
                 }
             }
+            loadTip();
+            hashIndex = new HeadersIndex(HeadersIndex.fileFor(file));
+            loadIndex();
         } catch (IOException e) {
+            if (hashIndex != null)
+                try {
+                    hashIndex.close();
+                } catch (IOException e1) {
+                    log.warn("could not close the index", e1);
+                }
             if (randomFile != null)
                 try {
                     randomFile.close();
@@ -67,6 +100,69 @@ public class HeadersStore {
         }
     }
 
+    /** Find the top header, and drop empty headers after it, such as the padding of a mapped store */
+    private void loadTip() throws IOException {
+        long height = channel.size() / HEADER_SIZE - 1;
+        byte[] bytes;
+        while ((bytes = read(height)) == null && height > 0)
+            height--;
+        if (bytes == null)
+            throw new IOException("no headers in store file");
+        if (channel.size() > (height + 1) * HEADER_SIZE) {
+            log.warn("ignoring empty headers after {}", height);
+            channel.truncate((height + 1) * HEADER_SIZE);
+        }
+        tip = new Tip(height, new Block(params, bytes));
+    }
+
+    /** Bring the index up to the tip, or rebuild it if it does not match the headers */
+    private void loadIndex() throws IOException {
+        Tip current = tip;
+        long indexed = hashIndex.getHeight();
+        long from = indexed + 1;
+        if (indexed < 0 || indexed > current.height || !isKeyAt(indexed, hashIndex.getTipKey())) {
+            log.info("rebuilding the index of {} headers", current.height + 1);
+            hashIndex.clear(current.height + 1);
+            from = 0;
+        }
+        ByteBuffer run = ByteBuffer.allocate(INDEX_RUN * (int) HEADER_SIZE);
+        byte[] header = new byte[(int) HEADER_SIZE];
+        for (long height = from ; height <= current.height ; ) {
+            run.clear();
+            run.limit((int) Math.min(INDEX_RUN, current.height + 1 - height) * (int) HEADER_SIZE);
+            while (run.hasRemaining()) {
+                if (channel.read(run, height * HEADER_SIZE + run.position()) < 0)
+                    throw new IOException("headers file is shorter than the tip");
+            }
+            run.flip();
+            while (run.hasRemaining()) {
+                run.get(header);
+                if (!Arrays.equals(header, EMPTY))
+                    hashIndex.put(HeadersIndex.key(Sha256Hash.hashTwice(header)), height);
+                height++;
+            }
+        }
+        commitIndex();
+    }
+
+    private boolean isKeyAt(long height, long key) throws IOException {
+        byte[] bytes = read(height);
+        return bytes != null && HeadersIndex.key(Sha256Hash.hashTwice(bytes)) == key;
+    }
+
+    /** Caller must hold the lock */
+    protected void setTip(long height, Block header) {
+        Tip old = tip;
+        // The old tip is looked at again soon, and is already decoded
+        if (height > old.height)
+            cache.put(old.height, old.header);
+        tip = new Tip(height, header);
+    }
+
+    protected Tip getTip() {
+        return tip;
+    }
+
     private void uncompressInitialStore(URL initialStore, File file) {
         try {
             GZIPInputStream in = new GZIPInputStream(initialStore.openStream());
@@ -87,20 +183,53 @@ public class HeadersStore {
      * Get the block at height index.
      *
      * Returns null if we didn't see the block yet, or if we started at a checkpoint after the block.
+     * The top header and recently used headers are shared, and must not be modified.
      */
     public Block get(long index) {
+        Tip current = tip;
+        if (index > current.height)
+            return null;
+        if (index == current.height)
+            return current.header;
+        long generation = cache.getGeneration();
+        Block block = cache.get(index);
+        if (block != null)
+            return block;
+        byte[] bytes = readHeader(index);
+        if (bytes == null)
+            return null;
+        block = new Block(params, bytes);
+        cache.put(index, block, generation);
+        return block;
+    }
+
+    /** How many decoded headers below the tip are kept in memory.  Defaults to {@link #DEFAULT_CACHE_SIZE}. */
+    public void setCacheSize(int size) {
+        cache.setMaxSize(size);
+    }
+
+    /** How often {@link #get(long)} found a header below the tip in memory */
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    /** How often {@link #get(long)} had to read and decode a header below the tip */
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    public double getCacheHitRate() {
+        long hits = cache.getHits();
+        long total = hits + cache.getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** @return the serialized header at height index, which is below the tip, or null if we don't have it */
+    @Nullable
+    protected byte[] readHeader(long index) {
         lock.lock();
         try {
-            if (channel.size() < (index+1) * HEADER_SIZE)
-                return null;
-            ByteBuffer b = ByteBuffer.allocate((int)HEADER_SIZE);
-            int n = channel.read(b, index * HEADER_SIZE);
-            if (n == 0) return null;
-            if (n != HEADER_SIZE)
-                throw new RuntimeException("partial read from store file");
-            if (Arrays.equals(b.array(), EMPTY))
-                return null;
-            return new Block(params, b.array());
+            return read(index);
         } catch (IOException e) {
             throw propagate(e);
         } finally {
@@ -108,25 +237,63 @@ public class HeadersStore {
         }
     }
 
-    public Block top() {
+    private byte[] read(long index) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int)HEADER_SIZE);
+        int n = channel.read(b, index * HEADER_SIZE);
+        if (n <= 0) return null;
+        if (n != HEADER_SIZE)
+            throw new RuntimeException("partial read from store file");
+        if (Arrays.equals(b.array(), EMPTY))
+            return null;
+        return b.array();
+    }
+
+    /** Caller must hold the lock */
+    @Nullable
+    private Sha256Hash hashAt(long index) {
+        Tip current = tip;
+        if (index >= current.height)
+            return index == current.height ? current.hash : null;
+        byte[] bytes = readHeader(index);
+        return bytes == null ? null : Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes));
+    }
+
+    /**
+     * Find the height of a header by its hash, through an index kept next to the store file.  Nothing is
+     * deserialized.
+     *
+     * @return the height, or -1 if the header is not in the store
+     */
+    public long getHeight(Sha256Hash hash) {
+        Tip current = tip;
+        if (hash.equals(current.hash))
+            return current.height;
         lock.lock();
         try {
-            return get(getHeight());
+            for (long height : hashIndex.find(HeadersIndex.key(hash))) {
+                // Confirm, since the key is only part of the hash
+                if (hash.equals(hashAt(height)))
+                    return height;
+            }
+            return -1;
         } finally {
             lock.unlock();
         }
     }
 
+    /** The top header, which is shared and must not be modified */
+    public Block top() {
+        return tip.header;
+    }
+
+    /** The hash of the top header, without reading or hashing it */
+    public Sha256Hash tipHash() {
+        return tip.hash;
+    }
+
     /** Get the height.  A store with just the genesis block is at height zero. */
     public long getHeight() {
-        lock.lock();
-        try {
-            return channel.size() / HEADER_SIZE - 1;
-        } catch (IOException e) {
-            throw propagate(e);
-        } finally {
-            lock.unlock();
-        }
+        return tip.height;
     }
 
     /** After this call, the store will be at height index. */
@@ -136,7 +303,10 @@ public class HeadersStore {
             Block block = get(index);
             if (block == null)
                 throw new RuntimeException("trying to truncate to a block we don't have " + index);
-            channel.truncate((index + 1) * HEADER_SIZE);
+            unindexAbove(index);
+            truncateTo(index, block);
+            cache.truncate(index);
+            commitIndex();
         } catch (IOException e) {
             propagate(e);
         } finally {
@@ -150,9 +320,15 @@ public class HeadersStore {
         lock.lock();
         try {
             Block block = get(index);
-            if (block == null)
-                channel.write(ByteBuffer.wrap(checkpoint.getHeader().cloneAsHeader().bitcoinSerialize()), index * HEADER_SIZE);
-            channel.truncate((index + 1) * HEADER_SIZE);
+            unindexAbove(index);
+            if (block == null) {
+                block = checkpoint.getHeader().cloneAsHeader();
+                write(index, ByteBuffer.wrap(block.bitcoinSerialize()));
+                hashIndex.put(HeadersIndex.key(block.getHash()), index);
+            }
+            truncateTo(index, block);
+            cache.truncate(index);
+            commitIndex();
         } catch (IOException e) {
             propagate(e);
         } finally {
@@ -164,11 +340,16 @@ public class HeadersStore {
         checkState(block.getTransactions() == null);
         lock.lock();
         try {
-            if (!block.getPrevBlockHash().equals(top().getHash())) {
-                log.error("block.prev = {}, but expecting {}@{}", block.getPrevBlockHash(), top().getHash(), getHeight());
+            Tip current = tip;
+            if (!block.getPrevBlockHash().equals(current.hash)) {
+                log.error("block.prev = {}, but expecting {}@{}", block.getPrevBlockHash(), current.hash, current.height);
                 return false;
             }
-            channel.write(ByteBuffer.wrap(block.bitcoinSerialize()), channel.size());
+            write(current.height + 1, ByteBuffer.wrap(block.bitcoinSerialize()));
+            // Publishes the header to readers
+            setTip(current.height + 1, block);
+            hashIndex.put(HeadersIndex.key(tip.hash), current.height + 1);
+            commitIndex();
             return true;
         } catch (Exception e) {
             throw propagate(e);
@@ -177,6 +358,102 @@ public class HeadersStore {
         }
     }
 
+    /**
+     * Append a run of serialized headers, such as a chunk, with a single write.  The linkage of the run is checked
+     * in memory, starting from the top.
+     *
+     * @param headers headers from the position to the limit.  The position is not changed.
+     * @return how many headers were added.  If fewer than given, this is the index of the first header that does
+     * not connect to the previous one, and nothing from there on was added.
+     */
+    public int addAll(ByteBuffer headers) {
+        ByteBuffer run = headers.slice();
+        checkArgument(run.remaining() % HEADER_SIZE == 0);
+        lock.lock();
+        try {
+            Tip current = tip;
+            long[] keys = new long[run.remaining() / (int) HEADER_SIZE];
+            int count = countConnected(current.hash, run, keys);
+            run.limit(count * (int) HEADER_SIZE);
+            write(current.height + 1, run.duplicate());
+            if (count > 0) {
+                // Publishes the headers to readers
+                setTip(current.height + count, lastHeader(run));
+                for (int i = 0 ; i < count ; i++)
+                    hashIndex.put(keys[i], current.height + 1 + i);
+                commitIndex();
+            }
+            return count;
+        } catch (IOException e) {
+            throw propagate(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Write a run of serialized headers starting at height index.  Caller must hold the lock. */
+    protected void write(long index, ByteBuffer run) throws IOException {
+        long position = index * HEADER_SIZE;
+        while (run.hasRemaining())
+            position += channel.write(run, position);
+    }
+
+    /** Drop the headers above height index, whose header is given, and make it the tip.  Caller must hold the lock. */
+    protected void truncateTo(long index, Block header) throws IOException {
+        channel.truncate((index + 1) * HEADER_SIZE);
+        setTip(index, header);
+    }
+
+    /** Remove the headers above height index from the index, before they are dropped.  Caller must hold the lock. */
+    private void unindexAbove(long index) {
+        for (long height = index + 1 ; height <= tip.height ; height++) {
+            Sha256Hash hash = hashAt(height);
+            if (hash != null)
+                hashIndex.remove(HeadersIndex.key(hash), height);
+        }
+    }
+
+    /** Caller must hold the lock */
+    private void commitIndex() {
+        Tip current = tip;
+        hashIndex.commit(current.height, HeadersIndex.key(current.hash));
+    }
+
+    /** @return the header before the limit of a run */
+    protected Block lastHeader(ByteBuffer run) {
+        byte[] header = new byte[(int) HEADER_SIZE];
+        ByteBuffer last = run.duplicate();
+        last.position(run.limit() - header.length);
+        last.get(header);
+        return new Block(params, header);
+    }
+
+    /**
+     * @param run headers from position zero to the limit.  The position is left at zero.
+     * @param keys receives the {@link HeadersIndex} key of each header that connects
+     * @return how many headers, from the start, connect to the previous one
+     */
+    protected static int countConnected(Sha256Hash topHash, ByteBuffer run, long[] keys) {
+        byte[] prev = topHash.getReversedBytes();
+        byte[] header = new byte[(int) HEADER_SIZE];
+        int total = run.remaining() / (int) HEADER_SIZE;
+        int count = 0;
+        while (count < total) {
+            run.get(header);
+            // The previous hash follows the version
+            for (int i = 0 ; i < prev.length ; i++) {
+                if (header[4 + i] != prev[i]) {
+                    run.position(0);
+                    return count;
+                }
+            }
+            prev = Sha256Hash.hashTwice(header, 0, header.length);
+            keys[count++] = HeadersIndex.key(prev);
+        }
+        run.position(0);
+        return count;
+    }
+
     public void verify() {
         verify(0);
     }
@@ -202,7 +479,11 @@ public class HeadersStore {
     public void close() {
         lock.lock();
         try {
-            randomFile.close();
+            try {
+                hashIndex.close();
+            } finally {
+                randomFile.close();
+            }
         } catch (IOException e) {
             propagate(e);
         } finally {
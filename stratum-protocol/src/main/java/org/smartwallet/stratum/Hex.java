@@ -0,0 +1,62 @@
+package org.smartwallet.stratum;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hex decoding straight from received JSON, without going through a String.
+ */
+class Hex {
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0 ; i < VALUES.length ; i++)
+            VALUES[i] = -1;
+        for (int i = 0 ; i < 10 ; i++)
+            VALUES['0' + i] = (byte) i;
+        for (int i = 0 ; i < 6 ; i++) {
+            VALUES['a' + i] = (byte) (10 + i);
+            VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private Hex() {
+    }
+
+    /**
+     * Decode a quoted JSON string of hex digits.
+     *
+     * @return the decoded bytes, or an empty array if the value is not a string
+     * @throws IllegalArgumentException if the string is not valid hex
+     */
+    static byte[] decodeQuoted(byte[] json, int offset, int length) {
+        if (length < 2 || json[offset] != '"' || json[offset + length - 1] != '"')
+            return new byte[0];
+        return decode(json, offset + 1, length - 2);
+    }
+
+    /** @throws IllegalArgumentException if the input is not valid hex */
+    static byte[] decode(byte[] ascii, int offset, int length) {
+        byte[] out = new byte[length / 2];
+        decode(ascii, offset, length, ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /**
+     * Decode into a buffer, which must have room for length / 2 bytes.
+     *
+     * @throws IllegalArgumentException if the input is not valid hex
+     */
+    static void decode(byte[] ascii, int offset, int length, ByteBuffer out) {
+        if ((length & 1) != 0)
+            throw new IllegalArgumentException("odd number of hex digits");
+        for (int i = offset ; i < offset + length ; i += 2)
+            out.put((byte) ((digit(ascii[i]) << 4) | digit(ascii[i + 1])));
+    }
+
+    private static int digit(int c) {
+        int value = c >= 0 && c < VALUES.length ? VALUES[c] : -1;
+        if (value < 0)
+            throw new IllegalArgumentException("invalid hex digit " + c);
+        return value;
+    }
+}
@@ -0,0 +1,41 @@
+package org.smartwallet.stratum;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps the most recent latency samples of a kind of call, for estimating percentiles.
+ */
+class LatencyTracker {
+    private static final int MIN_SAMPLES = 10;
+
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    LatencyTracker(int size) {
+        checkArgument(size >= MIN_SAMPLES);
+        samples = new long[size];
+    }
+
+    synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length)
+            count++;
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @return the latency in milliseconds at the percentile, or the default if there are too few samples
+     */
+    synchronized long percentile(double percentile, long defaultMillis) {
+        checkArgument(percentile > 0 && percentile <= 1);
+        if (count < MIN_SAMPLES)
+            return defaultMillis;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(percentile * count) - 1];
+    }
+}
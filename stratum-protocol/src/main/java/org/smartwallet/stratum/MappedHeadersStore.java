@@ -0,0 +1,129 @@
+package org.smartwallet.stratum;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * A {@link HeadersStore} that maps the file into memory, in segments that are mapped as the chain grows.
+ *
+ * <p>Reads don't lock and don't make system calls.  They copy the header out of the mapping, and see everything
+ * up to the tip, which is published after the headers are written.  Writes still take the lock, and go through
+ * the mapping.
+ *
+ * <p>Mapping a segment extends the file to the end of the segment.  The padding is trimmed on close, and dropped
+ * on open in case we were not closed.
+ */
+public class MappedHeadersStore extends HeadersStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedHeadersStore.class);
+    private static final int HEADER_SIZE = Block.HEADER_SIZE;
+    // 20 MB per segment
+    private static final int SEGMENT_SHIFT = 18;
+    private static final int SEGMENT_HEADERS = 1 << SEGMENT_SHIFT;
+    private static final long SEGMENT_SIZE = (long) SEGMENT_HEADERS * HEADER_SIZE;
+    private static final byte[] EMPTY = new byte[HEADER_SIZE];
+
+    // Replaced with a larger copy when a segment is added, so readers never lock
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    public MappedHeadersStore(NetworkParameters params, File file, StoredBlock checkpoint, URL initialStore) {
+        super(params, file, checkpoint, initialStore);
+        lock.lock();
+        try {
+            map(getHeight() >> SEGMENT_SHIFT);
+        } catch (IOException e) {
+            super.close();
+            throw propagate(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Map segments up to and including this one */
+    private void map(long segment) throws IOException {
+        MappedByteBuffer[] current = segments;
+        if (segment < current.length)
+            return;
+        MappedByteBuffer[] larger = Arrays.copyOf(current, (int) segment + 1);
+        for (int i = current.length ; i <= segment ; i++)
+            larger[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * SEGMENT_SIZE, SEGMENT_SIZE);
+        segments = larger;
+    }
+
+    private static byte[] read(MappedByteBuffer[] segments, long index) {
+        ByteBuffer slice = segments[(int) (index >> SEGMENT_SHIFT)].duplicate();
+        slice.position((int) (index & (SEGMENT_HEADERS - 1)) * HEADER_SIZE);
+        byte[] bytes = new byte[HEADER_SIZE];
+        slice.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    protected void write(long index, ByteBuffer run) throws IOException {
+        // Segment by segment
+        while (run.hasRemaining()) {
+            map(index >> SEGMENT_SHIFT);
+            ByteBuffer slice = segments[(int) (index >> SEGMENT_SHIFT)].duplicate();
+            slice.position((int) (index & (SEGMENT_HEADERS - 1)) * HEADER_SIZE);
+            ByteBuffer part = run.duplicate();
+            part.limit(run.position() + Math.min(run.remaining(), slice.remaining()));
+            slice.put(part);
+            index += (part.position() - run.position()) / HEADER_SIZE;
+            run.position(part.position());
+        }
+    }
+
+    /** Clear headers above the new tip, so they are not found again on open */
+    @Override
+    protected void truncateTo(long index, Block header) throws IOException {
+        long old = getHeight();
+        // Readers stop looking above the new tip first
+        setTip(index, header);
+        for (long i = index + 1 ; i <= old ; i++)
+            write(i, ByteBuffer.wrap(EMPTY));
+    }
+
+    /** Doesn't lock */
+    @Override
+    protected byte[] readHeader(long index) {
+        MappedByteBuffer[] current = segments;
+        // Closed while we were looking
+        if (index < 0 || index >> SEGMENT_SHIFT >= current.length)
+            return null;
+        byte[] bytes = read(current, index);
+        // Truncated while we were reading
+        if (index > getHeight() || Arrays.equals(bytes, EMPTY))
+            return null;
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+            // Can fail while the file is mapped on some platforms, and the padding is then dropped on open
+            channel.truncate((getHeight() + 1) * HEADER_SIZE);
+        } catch (IOException e) {
+            log.warn("could not trim the headers file", e);
+        } finally {
+            // Nothing is found below the tip after closing, rather than reading past the end of the trimmed file
+            segments = new MappedByteBuffer[0];
+            lock.unlock();
+        }
+        super.close();
+    }
+}
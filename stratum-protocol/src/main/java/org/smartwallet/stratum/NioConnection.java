@@ -0,0 +1,373 @@
+package org.smartwallet.stratum;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A non-blocking connection driven by a {@link StratumEventLoop}.
+ *
+ * <p>All socket and SSLEngine state is only touched on the selector thread.  {@link #write} and
+ * {@link #close} may be called from any thread.
+ */
+class NioConnection implements Closeable {
+    protected static Logger logger = LoggerFactory.getLogger("NioConnection");
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Maximum number of queued frames handed to a single gathering write
+    private static final int MAX_GATHER = 64;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    interface Listener {
+        /** Called on the selector thread once the TCP connection and any TLS handshake completed */
+        void onConnected(NioConnection connection);
+
+        /** Called on the selector thread with received plaintext.  The data is only valid during the call. */
+        void onData(NioConnection connection, byte[] data, int offset, int length) throws IOException;
+
+        /** Called on the selector thread exactly once.  Cause is null on orderly EOF or local close. */
+        void onClosed(NioConnection connection, @Nullable Throwable cause);
+    }
+
+    private final StratumEventLoop loop;
+    private final SocketChannel channel;
+    @Nullable private final SSLEngine engine;
+    private final Listener listener;
+    private final BufferPool pool;
+    private final FrameLanes outbound;
+    // Frames taken from the lanes and not completely written yet.  Selector thread only.
+    private final Queue<ByteBuffer> writing;
+    private final ByteBuffer[] gather;
+    private final Runnable flushTask;
+    private SelectionKey key;
+    // Received ciphertext, in write mode.  Only used with TLS.
+    private ByteBuffer netIn;
+    // Outgoing ciphertext, in write mode.  Only used with TLS.
+    private ByteBuffer netOut;
+    // Received plaintext, in write mode
+    private ByteBuffer appIn;
+    private boolean isReady;
+    private volatile boolean isClosed;
+
+    private NioConnection(StratumEventLoop loop, SocketChannel channel, @Nullable SSLEngine engine,
+                          Listener listener, BufferPool pool) {
+        this.loop = loop;
+        this.channel = channel;
+        this.engine = engine;
+        this.listener = listener;
+        this.pool = pool;
+        outbound = new FrameLanes();
+        writing = new ArrayDeque<>();
+        gather = new ByteBuffer[MAX_GATHER];
+        if (engine != null) {
+            netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        } else {
+            appIn = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        flushTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (isReady)
+                        flush();
+                } catch (Throwable t) {
+                    closeNow(t);
+                }
+            }
+        };
+    }
+
+    /**
+     * Start connecting to a resolved address.  The listener will be called back on the selector thread.
+     *
+     * @param engine a client mode engine for TLS, or null for a plain connection
+     * @param pool written frames are returned to this pool
+     */
+    static NioConnection open(StratumEventLoop loop, final InetSocketAddress address, @Nullable SSLEngine engine,
+                              Listener listener, BufferPool pool) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        final NioConnection connection = new NioConnection(loop, channel, engine, listener, pool);
+        try {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (channel.connect(address)) {
+                            connection.key = connection.loop.register(channel, SelectionKey.OP_READ, connection);
+                            connection.onTcpConnected();
+                        } else {
+                            connection.key = connection.loop.register(channel, SelectionKey.OP_CONNECT, connection);
+                        }
+                    } catch (Throwable t) {
+                        connection.closeNow(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            channel.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /** @return the TLS session, which is established by the time the listener is told we are connected */
+    @Nullable
+    SSLSession getSession() {
+        return engine != null ? engine.getSession() : null;
+    }
+
+    /**
+     * Queue a flipped frame for sending, after queued frames of higher priority.  The buffer is returned to the
+     * pool once written.
+     */
+    public void write(ByteBuffer frame, StratumClient.Priority priority) {
+        outbound.add(frame, priority);
+        try {
+            loop.execute(flushTask);
+        } catch (RejectedExecutionException e) {
+            // Nothing will send them
+            outbound.clear();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeNow(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The loop closed its connections when it shut down
+        }
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    /** Dispatch a selector event.  Selector thread only. */
+    void handle(SelectionKey key) throws IOException {
+        if (!key.isValid())
+            return;
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            onTcpConnected();
+            return;
+        }
+        if (key.isReadable())
+            onReadable();
+        if (key.isValid() && key.isWritable())
+            onWritable();
+    }
+
+    /** Close and notify the listener.  Selector thread only. */
+    void closeNow(@Nullable Throwable cause) {
+        if (isClosed)
+            return;
+        isClosed = true;
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("failed to close channel", e);
+        }
+        outbound.clear();
+        writing.clear();
+        listener.onClosed(this, cause);
+    }
+
+    private void onTcpConnected() throws IOException {
+        if (engine != null) {
+            engine.beginHandshake();
+            handshake();
+        } else {
+            ready();
+        }
+    }
+
+    private void ready() throws IOException {
+        isReady = true;
+        listener.onConnected(this);
+        flush();
+    }
+
+    private void onReadable() throws IOException {
+        int n = channel.read(engine != null ? netIn : appIn);
+        if (n < 0) {
+            logger.info("< EOF");
+            closeNow(null);
+            return;
+        }
+        if (engine != null) {
+            if (!isReady) {
+                handshake();
+                if (!isReady)
+                    return;
+            }
+            while (netIn.position() > 0 && unwrap()) {
+                // Drain all complete TLS records
+            }
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                handshake();
+        }
+        deliverData();
+    }
+
+    private void onWritable() throws IOException {
+        if (engine != null && !isReady)
+            handshake();
+        else
+            flush();
+    }
+
+    private void handshake() throws IOException {
+        while (!isClosed) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                    task.run();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                else if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new EOFException("TLS closed during handshake");
+                if (!flushNetOut())
+                    return; // Continue on OP_WRITE
+            } else if (status == SSLEngineResult.HandshakeStatus.FINISHED ||
+                    status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                if (!isReady)
+                    ready();
+                return;
+            } else {
+                // NEED_UNWRAP, or NEED_UNWRAP_AGAIN on newer JREs
+                if (!unwrap() && engine.getHandshakeStatus() == status)
+                    return; // Continue on OP_READ
+            }
+        }
+    }
+
+    /** @return false if no progress was made, usually because more ciphertext is needed */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                return true;
+            case BUFFER_UNDERFLOW:
+                if (!netIn.hasRemaining())
+                    netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                return false;
+            case CLOSED:
+                throw new EOFException("TLS closed");
+            default:
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    /** Write out pending ciphertext.  @return true if everything was written */
+    private boolean flushNetOut() throws IOException {
+        netOut.flip();
+        try {
+            channel.write(netOut);
+            boolean done = !netOut.hasRemaining();
+            setWriteInterest(!done);
+            return done;
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (isClosed)
+            return;
+        while (true) {
+            if (engine != null && netOut.position() > 0 && !flushNetOut())
+                return;
+            ByteBuffer next;
+            while (writing.size() < MAX_GATHER && (next = outbound.poll()) != null)
+                writing.add(next);
+            int count = 0;
+            for (ByteBuffer frame : writing) {
+                gather[count++] = frame;
+                if (count == MAX_GATHER)
+                    break;
+            }
+            if (count == 0)
+                break;
+            if (engine == null) {
+                channel.write(gather, 0, count);
+            } else {
+                SSLEngineResult result = engine.wrap(gather, 0, count, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new SSLException("TLS closed while writing");
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0)
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+            }
+            boolean isPartial = gather[count - 1].hasRemaining();
+            for (int i = 0 ; i < count && !gather[i].hasRemaining() ; i++)
+                pool.release(writing.poll());
+            Arrays.fill(gather, 0, count, null);
+            if (engine == null && isPartial) {
+                // Socket buffer is full
+                setWriteInterest(true);
+                return;
+            }
+        }
+        setWriteInterest(false);
+    }
+
+    private void setWriteInterest(boolean isWrite) {
+        if (key == null || !key.isValid())
+            return;
+        int ops = SelectionKey.OP_READ | (isWrite ? SelectionKey.OP_WRITE : 0);
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    private void deliverData() throws IOException {
+        appIn.flip();
+        if (appIn.hasRemaining())
+            listener.onData(this, appIn.array(), appIn.arrayOffset() + appIn.position(), appIn.remaining());
+        appIn.clear();
+    }
+
+    /** Copy a write mode buffer into a larger one */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimum) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(minimum, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,338 @@
+package org.smartwallet.stratum;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.*;
+import org.bitcoinj.core.NetworkParameters;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A client that keeps connections to several servers and spreads stateless calls across them.
+ *
+ * <p>This client is the primary connection.  Subscriptions, pings and any call not in {@link #POOLED_METHODS} stay
+ * on it.  Pooled calls go to the connected member with the fewest calls in flight.  Header results received
+ * by a member are delivered to the headers queue of this client, as if they had been received here.
+ *
+ * <p>Members share a {@link ServerHealth} table, and avoid servers that other members are connected to.
+ *
+ * <p>Calls in {@link #HEDGED_METHODS} can be hedged, see {@link #setHedgePercentile(double)}.
+ */
+public class PooledStratumClient extends StratumClient {
+    /** Calls that don't depend on connection state, and can go to any server */
+    public static final Set<String> POOLED_METHODS = ImmutableSet.of(
+            BLOCKCHAIN_TRANSACTION_GET,
+            "blockchain.address.get_history",
+            BLOCKCHAIN_GET_CHUNK,
+            BLOCKCHAIN_GET_HEADER);
+    /** Latency critical calls that may be hedged */
+    public static final Set<String> HEDGED_METHODS = ImmutableSet.of(
+            BLOCKCHAIN_TRANSACTION_GET,
+            BLOCKCHAIN_GET_HEADER);
+    // Hedge delay until we have enough samples
+    private static final long DEFAULT_HEDGE_DELAY = 1000;
+    private static final long MIN_HEDGE_DELAY = 10;
+    private static final int LATENCY_SAMPLES = 256;
+
+    // This client first, followed by the other members
+    private final List<StratumClient> clients;
+    private final ConcurrentMap<String, LatencyTracker> latencies = Maps.newConcurrentMap();
+    private volatile double hedgePercentile;
+
+    /**
+     * @param size the total number of connections, including the primary one
+     */
+    public PooledStratumClient(NetworkParameters params, List<InetSocketAddress> addresses, boolean isTls,
+                               StratumEventLoop eventLoop, int size) {
+        super(params, addresses, isTls, eventLoop);
+        checkArgument(size > 0);
+        clients = Lists.newArrayList();
+        clients.add(this);
+        for (int i = 1 ; i < size ; i++) {
+            Member member = new Member(params, Lists.newArrayList(serverAddresses), isTls, eventLoop);
+            member.setServerHealth(getServerHealth());
+            member.setWireTrace(getWireTrace());
+            clients.add(member);
+        }
+    }
+
+    /** A member connection, which delivers header results to the primary */
+    private class Member extends StratumClient {
+        Member(NetworkParameters params, List<InetSocketAddress> addresses, boolean isTls,
+               StratumEventLoop eventLoop) {
+            super(params, addresses, isTls, eventLoop);
+        }
+
+        @Override
+        protected void handleMessage(String subscriptionMethod, StratumMessage message) {
+            PooledStratumClient.this.handleMessage(subscriptionMethod, message);
+        }
+
+        @Override
+        protected Collection<InetSocketAddress> getExcludedServers() {
+            return connectedExcept(this);
+        }
+    }
+
+    @Override
+    protected Collection<InetSocketAddress> getExcludedServers() {
+        return connectedExcept(this);
+    }
+
+    /** @return the servers that the other clients are connected or connecting to */
+    private List<InetSocketAddress> connectedExcept(StratumClient except) {
+        List<InetSocketAddress> addresses = Lists.newArrayList();
+        for (StratumClient client : clients) {
+            InetSocketAddress address = client.getPeerAddress();
+            if (client != except && address != null)
+                addresses.add(address);
+        }
+        return addresses;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        super.startUp();
+        for (StratumClient client : members())
+            client.startAsync();
+    }
+
+    @Override
+    protected void shutDown() {
+        for (StratumClient client : members())
+            client.stopAsync();
+        super.shutDown();
+    }
+
+    private List<StratumClient> members() {
+        return clients.subList(1, clients.size());
+    }
+
+    /**
+     * Re-issue a hedged call on a second connection if it was not answered within this percentile of recent
+     * latencies of the method, such as 0.95.  The first reply completes the call, and the other attempt is
+     * cancelled.  Zero, the default, disables hedging.
+     */
+    public void setHedgePercentile(double percentile) {
+        checkArgument(percentile >= 0 && percentile <= 1);
+        hedgePercentile = percentile;
+    }
+
+    @Override
+    public void call(String method, List<Object> params, boolean doQueue, SettableFuture<StratumMessage> future,
+                     Priority priority) {
+        if (hedgePercentile > 0 && HEDGED_METHODS.contains(method))
+            hedge(method, params, doQueue, future, priority);
+        else
+            send(route(method, null), method, params, doQueue, future, priority);
+    }
+
+    private void send(StratumClient client, String method, List<Object> params, boolean doQueue,
+                      SettableFuture<StratumMessage> future, Priority priority) {
+        if (client == this)
+            super.call(method, params, doQueue, future, priority);
+        else
+            client.call(method, params, doQueue, future, priority);
+    }
+
+    private void hedge(final String method, final List<Object> params, final boolean doQueue,
+                       final SettableFuture<StratumMessage> future, final Priority priority) {
+        final long start = System.currentTimeMillis();
+        final StratumClient first = route(method, null);
+        final SettableFuture<StratumMessage> firstAttempt = attempt(method, start, future);
+        send(first, method, params, doQueue, firstAttempt, priority);
+        long delay = Math.max(MIN_HEDGE_DELAY, getLatency(method).percentile(hedgePercentile, DEFAULT_HEDGE_DELAY));
+        final ScheduledFuture<?> timer = getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone())
+                    return;
+                StratumClient second = route(method, first);
+                if (second == null)
+                    return;
+                // Don't hold up the timer if the other connection is busy
+                SettableFuture<StratumMessage> attempt = attempt(method, start, future);
+                if (!second.tryCall(method, params, doQueue, attempt, priority)) {
+                    attempt.cancel(false);
+                    return;
+                }
+                logger.info("hedged {} after {} ms", method, System.currentTimeMillis() - start);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timer.cancel(false);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /** @return a future for one attempt of a hedged call, which completes the call or is cancelled if it loses */
+    private SettableFuture<StratumMessage> attempt(final String method, final long start,
+                                                   final SettableFuture<StratumMessage> future) {
+        final SettableFuture<StratumMessage> attempt = SettableFuture.create();
+        Futures.addCallback(attempt, new FutureCallback<StratumMessage>() {
+            @Override
+            public void onSuccess(StratumMessage result) {
+                if (future.set(result))
+                    getLatency(method).record(System.currentTimeMillis() - start);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (!attempt.isCancelled())
+                    future.setException(t);
+            }
+        });
+        // Cancelling the attempt removes it from the pending calls, so a late reply is skipped
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                attempt.cancel(false);
+            }
+        }, MoreExecutors.directExecutor());
+        return attempt;
+    }
+
+    private LatencyTracker getLatency(String method) {
+        LatencyTracker latency = latencies.get(method);
+        if (latency == null) {
+            latencies.putIfAbsent(method, new LatencyTracker(LATENCY_SAMPLES));
+            latency = latencies.get(method);
+        }
+        return latency;
+    }
+
+    @Override
+    public List<ListenableFuture<StratumMessage>> callBatch(String method, List<?> params, Priority priority) {
+        StratumClient client = route(method, null);
+        if (client == this)
+            return super.callBatch(method, params, priority);
+        return client.callBatch(method, params, priority);
+    }
+
+    /**
+     * @param exclude if not null, a client to avoid, and null is returned if there is no other connected client
+     * @return the connected client with the fewest calls in flight, or this one for calls that can't be pooled
+     */
+    private StratumClient route(String method, StratumClient exclude) {
+        if (!POOLED_METHODS.contains(method))
+            return exclude == this ? null : this;
+        StratumClient best = exclude == null ? this : null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (StratumClient client : clients) {
+            if (!client.isConnected || client == exclude)
+                continue;
+            int load = client.getPendingCount();
+            if (load < bestLoad) {
+                best = client;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public List<InetSocketAddress> getConnectedAddresses() {
+        List<InetSocketAddress> addresses = super.getConnectedAddresses();
+        for (StratumClient client : members())
+            addresses.addAll(client.getConnectedAddresses());
+        return addresses;
+    }
+
+    @Override
+    public void setRawResults(boolean isRawResults) {
+        super.setRawResults(isRawResults);
+        for (StratumClient client : members())
+            client.setRawResults(isRawResults);
+    }
+
+    @Override
+    public void setServerHealth(ServerHealth serverHealth) {
+        super.setServerHealth(serverHealth);
+        for (StratumClient client : members())
+            client.setServerHealth(serverHealth);
+    }
+
+    @Override
+    public void setReplayRate(double perSecond) {
+        super.setReplayRate(perSecond);
+        for (StratumClient client : members())
+            client.setReplayRate(perSecond);
+    }
+
+    @Override
+    public void setReplayBroadcasts(boolean isReplayBroadcasts) {
+        super.setReplayBroadcasts(isReplayBroadcasts);
+        for (StratumClient client : members())
+            client.setReplayBroadcasts(isReplayBroadcasts);
+    }
+
+    @Override
+    public void setCallTimeout(long millis) {
+        super.setCallTimeout(millis);
+        for (StratumClient client : members())
+            client.setCallTimeout(millis);
+    }
+
+    /** Limits each connection, so the pool as a whole allows this many calls per connection */
+    @Override
+    public void setMaxInFlight(int maxInFlight) {
+        super.setMaxInFlight(maxInFlight);
+        for (StratumClient client : members())
+            client.setMaxInFlight(maxInFlight);
+    }
+
+    /** @return the average utilisation of the windows of all connections */
+    @Override
+    public double getWindowUtilisation() {
+        double total = 0;
+        for (StratumClient client : clients)
+            total += client == this ? super.getWindowUtilisation() : client.getWindowUtilisation();
+        return total / clients.size();
+    }
+
+    @Override
+    public void setMaxFrameSize(int maxFrameSize) {
+        super.setMaxFrameSize(maxFrameSize);
+        for (StratumClient client : members())
+            client.setMaxFrameSize(maxFrameSize);
+    }
+
+    @Override
+    public void setBatchWindow(long millis) {
+        super.setBatchWindow(millis);
+        for (StratumClient client : members())
+            client.setBatchWindow(millis);
+    }
+
+    @Override
+    public void setThreadModel(ThreadModel threadModel) {
+        super.setThreadModel(threadModel);
+        for (StratumClient client : members())
+            client.setThreadModel(threadModel);
+    }
+
+    @Override
+    public void setMetrics(StratumMetrics metrics) {
+        super.setMetrics(metrics);
+        for (StratumClient client : members())
+            client.setMetrics(metrics);
+    }
+
+    @Override
+    public void setQueue(boolean isQueue) {
+        super.setQueue(isQueue);
+        for (StratumClient client : members())
+            client.setQueue(isQueue);
+    }
+}
@@ -0,0 +1,215 @@
+package org.smartwallet.stratum;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A size-bounded cache of responses that never change, such as transactions and buried headers.
+ *
+ * <p>Entries are kept in memory, and optionally in a directory with one file per entry.  Both tiers evict the
+ * least recently used entries when they grow beyond their size.  The disk tier is kept across restarts, with the
+ * modification time of the files recording their use.
+ *
+ * <p>The cache does not decide what is immutable, see {@link StratumClient#setResponseCache(ResponseCache)}.
+ */
+public class ResponseCache {
+    protected static Logger logger = LoggerFactory.getLogger("ResponseCache");
+
+    private final long maxMemoryBytes;
+    @GuardedBy("this")
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("this")
+    private long memoryBytes;
+
+    @Nullable private final File directory;
+    private final long maxDiskBytes;
+    // File name to size, least recently used first
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("this")
+    private long diskBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** An in-memory cache */
+    public ResponseCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * @param directory where entries are kept across restarts, or null for memory only.  Created if missing.
+     */
+    public ResponseCache(long maxMemoryBytes, @Nullable File directory, long maxDiskBytes) {
+        checkArgument(maxMemoryBytes >= 0 && maxDiskBytes >= 0);
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        if (directory != null)
+            loadDirectory(directory);
+    }
+
+    private synchronized void loadDirectory(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("could not create {}", directory);
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        // Oldest first, so that they are evicted first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            disk.put(file.getName(), file.length());
+            diskBytes += file.length();
+        }
+        evictDisk();
+    }
+
+    /** @return the cached response, or null */
+    @Nullable
+    public byte[] get(String key) {
+        byte[] value;
+        synchronized (this) {
+            value = memory.get(key);
+        }
+        if (value == null && directory != null)
+            value = readDisk(key);
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return value;
+    }
+
+    public void put(String key, byte[] value) {
+        putMemory(key, value);
+        if (directory != null)
+            writeDisk(key, value);
+    }
+
+    private synchronized void putMemory(String key, byte[] value) {
+        if (value.length > maxMemoryBytes)
+            return;
+        byte[] old = memory.put(key, value);
+        if (old != null)
+            memoryBytes -= old.length;
+        memoryBytes += value.length;
+        Iterator<byte[]> iterator = memory.values().iterator();
+        while (memoryBytes > maxMemoryBytes) {
+            memoryBytes -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    @Nullable
+    private byte[] readDisk(String key) {
+        String name = fileName(key);
+        synchronized (this) {
+            // Also marks it as used
+            if (disk.get(name) == null)
+                return null;
+        }
+        File file = new File(directory, name);
+        try {
+            byte[] value = Files.toByteArray(file);
+            file.setLastModified(System.currentTimeMillis());
+            putMemory(key, value);
+            return value;
+        } catch (IOException e) {
+            logger.warn("could not read {}", file);
+            synchronized (this) {
+                Long size = disk.remove(name);
+                if (size != null)
+                    diskBytes -= size;
+            }
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, byte[] value) {
+        if (value.length > maxDiskBytes)
+            return;
+        String name = fileName(key);
+        synchronized (this) {
+            if (disk.containsKey(name))
+                return;
+        }
+        File file = new File(directory, name);
+        File temp = new File(directory, name + ".tmp");
+        try {
+            Files.write(value, temp);
+            if (!temp.renameTo(file)) {
+                logger.warn("could not rename {}", temp);
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            logger.warn("could not write {}", file);
+            return;
+        }
+        synchronized (this) {
+            Long old = disk.put(name, (long) value.length);
+            if (old != null)
+                diskBytes -= old;
+            diskBytes += value.length;
+            evictDisk();
+        }
+    }
+
+    @GuardedBy("this")
+    private void evictDisk() {
+        Iterator<Map.Entry<String, Long>> iterator = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(directory, entry.getKey()).delete();
+            diskBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    // Keys contain characters that are not safe in file names
+    private static String fileName(String key) {
+        return Hashing.sha256().hashString(key, Charsets.UTF_8).toString();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the fraction of lookups that were served from the cache, or zero if there were none */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+}
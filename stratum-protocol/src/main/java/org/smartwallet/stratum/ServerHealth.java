@@ -0,0 +1,245 @@
+package org.smartwallet.stratum;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the health of servers, to pick the best one when connecting and to back off from failing ones.
+ *
+ * <p>Records connect time, ping round trip time, failures and disconnects for each server.  Failures are failed
+ * connects, failed pings, connections that fail and connections that are closed soon after they were opened.
+ * Each consecutive failure doubles the time a server is avoided.
+ *
+ * <p>If constructed with a file, the table is loaded from it and {@link #save()} writes it back, so that
+ * we remember good and bad servers across restarts.  One instance can be shared by several clients.
+ */
+public class ServerHealth {
+    protected static Logger logger = LoggerFactory.getLogger("ServerHealth");
+    // Latency assumed for servers we don't know yet, optimistic so that they get tried
+    private static final long UNKNOWN_LATENCY = 200;
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 5 * 60 * 1000;
+    // A connection closed sooner than this after being opened counts as a failure
+    private static final long MIN_HEALTHY_CONNECTION = 10 * 1000;
+    // Weight of a new sample in the moving averages
+    private static final double ALPHA = 0.2;
+    // How much a failure rate of 1 multiplies the latency score
+    private static final double FAILURE_PENALTY = 4;
+
+    /** Health of one server.  Public for serialization. */
+    public static class Stats {
+        public long connectMillis;
+        public long pingMillis;
+        public int connects;
+        public int failures;
+        public int disconnects;
+        public int consecutiveFailures;
+        public long lastFailure;
+        @JsonIgnore
+        long connectedAt;
+
+        synchronized double score() {
+            long latency = pingMillis > 0 ? pingMillis : connectMillis > 0 ? connectMillis : UNKNOWN_LATENCY;
+            double failureRate = (double) failures / (connects + failures + 1);
+            return latency * (1 + FAILURE_PENALTY * failureRate);
+        }
+
+        /** @return when we may try this server again, or zero if we may try now */
+        synchronized long retryAt() {
+            if (consecutiveFailures == 0)
+                return 0;
+            long backoff = MIN_BACKOFF << Math.min(consecutiveFailures - 1, 20);
+            return lastFailure + Math.min(backoff, MAX_BACKOFF);
+        }
+    }
+
+    private final ConcurrentMap<String, Stats> servers;
+    @Nullable private final File file;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Random random = new Random();
+
+    /** An in-memory table */
+    public ServerHealth() {
+        this(null);
+    }
+
+    /** @param file where the table is kept across restarts, or null */
+    public ServerHealth(@Nullable File file) {
+        this.file = file;
+        this.servers = Maps.newConcurrentMap();
+        if (file != null && file.exists()) {
+            try {
+                Map<String, Stats> loaded = mapper.readValue(file, new TypeReference<Map<String, Stats>>() {});
+                servers.putAll(loaded);
+            } catch (IOException e) {
+                logger.warn("could not read server health from {}, starting over", file);
+            }
+        }
+    }
+
+    /** Write the table to the file, if we have one.  Clients sharing this instance may call it at the same time. */
+    public synchronized void save() {
+        if (file == null)
+            return;
+        File temp = null;
+        try {
+            // Unique, in case another process saves to the same file
+            temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            mapper.writeValue(temp, servers);
+            if (!temp.renameTo(file))
+                logger.warn("could not rename {}", temp);
+        } catch (IOException e) {
+            logger.warn("could not write server health to {}", file);
+        } finally {
+            if (temp != null && temp.exists() && !temp.delete())
+                logger.warn("could not delete {}", temp);
+        }
+    }
+
+    private static String key(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    private Stats get(InetSocketAddress address) {
+        String key = key(address);
+        Stats stats = servers.get(key);
+        if (stats == null) {
+            servers.putIfAbsent(key, new Stats());
+            stats = servers.get(key);
+        }
+        return stats;
+    }
+
+    /** @return a copy of the stats of a server */
+    public Stats getStats(InetSocketAddress address) {
+        Stats stats = get(address);
+        Stats copy = new Stats();
+        synchronized (stats) {
+            copy.connectMillis = stats.connectMillis;
+            copy.pingMillis = stats.pingMillis;
+            copy.connects = stats.connects;
+            copy.failures = stats.failures;
+            copy.disconnects = stats.disconnects;
+            copy.consecutiveFailures = stats.consecutiveFailures;
+            copy.lastFailure = stats.lastFailure;
+        }
+        return copy;
+    }
+
+    /**
+     * Pick the server to connect to next.  Servers that are backing off are skipped, unless all of them are.
+     * Scores are jittered, so that clients don't all pick the same server.
+     *
+     * @param exclude servers not to pick if there is any other, such as those that other connections are using
+     */
+    public InetSocketAddress select(Collection<InetSocketAddress> candidates, Collection<InetSocketAddress> exclude) {
+        long now = System.currentTimeMillis();
+        InetSocketAddress best = null;
+        double bestScore = Double.MAX_VALUE;
+        // If all are unavailable, the one that will be available soonest
+        InetSocketAddress soonest = null;
+        long soonestRetry = Long.MAX_VALUE;
+        for (InetSocketAddress candidate : candidates) {
+            Stats stats = get(candidate);
+            long retryAt = stats.retryAt();
+            boolean isExcluded = contains(exclude, candidate);
+            if (retryAt > now || isExcluded) {
+                // Excluded servers are only a last resort
+                long retry = isExcluded ? Math.max(retryAt, now) + MAX_BACKOFF : retryAt;
+                if (retry < soonestRetry) {
+                    soonest = candidate;
+                    soonestRetry = retry;
+                }
+                continue;
+            }
+            double score = stats.score() * (0.9 + 0.2 * random.nextDouble());
+            if (score < bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : soonest;
+    }
+
+    private static boolean contains(Collection<InetSocketAddress> addresses, InetSocketAddress address) {
+        String key = key(address);
+        for (InetSocketAddress other : addresses) {
+            if (key(other).equals(key))
+                return true;
+        }
+        return false;
+    }
+
+    /** @return how long to wait before connecting to any of the candidates */
+    public long reconnectDelay(Collection<InetSocketAddress> candidates) {
+        long now = System.currentTimeMillis();
+        long soonest = Long.MAX_VALUE;
+        for (InetSocketAddress candidate : candidates)
+            soonest = Math.min(soonest, get(candidate).retryAt());
+        if (soonest <= now)
+            return 0;
+        // Full jitter on the remaining backoff
+        long delay = soonest - now;
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    public void recordConnected(InetSocketAddress address, long connectMillis) {
+        Stats stats = get(address);
+        synchronized (stats) {
+            stats.connects++;
+            stats.connectMillis = average(stats.connectMillis, connectMillis);
+            stats.connectedAt = System.currentTimeMillis();
+        }
+    }
+
+    public void recordPing(InetSocketAddress address, long rttMillis) {
+        Stats stats = get(address);
+        synchronized (stats) {
+            stats.pingMillis = average(stats.pingMillis, rttMillis);
+            // A server that answers pings is healthy, even if it recently had trouble
+            stats.consecutiveFailures = 0;
+        }
+    }
+
+    /** A failed connect, ping or connection */
+    public void recordFailure(InetSocketAddress address) {
+        Stats stats = get(address);
+        synchronized (stats) {
+            stats.failures++;
+            stats.consecutiveFailures++;
+            stats.lastFailure = System.currentTimeMillis();
+        }
+        logger.info("failure of {}, backing off for {} ms", key(address), stats.retryAt() - stats.lastFailure);
+    }
+
+    /** A connection closed by the server */
+    public void recordDisconnect(InetSocketAddress address) {
+        Stats stats = get(address);
+        boolean isFlapping;
+        synchronized (stats) {
+            stats.disconnects++;
+            isFlapping = System.currentTimeMillis() - stats.connectedAt < MIN_HEALTHY_CONNECTION;
+        }
+        if (isFlapping)
+            recordFailure(address);
+    }
+
+    private static long average(long current, long sample) {
+        if (current == 0)
+            return sample;
+        return Math.round(current * (1 - ALPHA) + sample * ALPHA);
+    }
+}
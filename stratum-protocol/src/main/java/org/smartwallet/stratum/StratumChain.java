@@ -7,10 +7,11 @@ import org.bitcoinj.core.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static org.smartwallet.stratum.StratumClient.*;
 
@@ -26,15 +27,7 @@ public class StratumChain extends AbstractExecutionThreadService {
     private final StratumClient client;
     private final CopyOnWriteArrayList<Listener> listeners;
     private long peerHeight;
-    static ThreadFactory threadFactory =
-            new ThreadFactoryBuilder()
-                    .setDaemon(true)
-                    .setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
-                        @Override
-                        public void uncaughtException(Thread t, Throwable e) {
-                            log.error("uncaught exception", e);
-                        }
-                    }).build();
+    private ThreadModel threadModel = ThreadModel.getDefault();
 
     public void addChainListener(Listener listener) {
         listeners.add(listener);
@@ -93,6 +86,7 @@ public class StratumChain extends AbstractExecutionThreadService {
     }
 
     boolean handleBlock(StratumMessage item) {
+        // Results of get_header and headers.subscribe come through the queue as copies with a parsed result
         JsonNode result = item.result != null ? item.result : item.params.get(0);
         long height = result.get("block_height").longValue();
         if (item.method.equals(BLOCKCHAIN_HEADERS_SUBSCRIBE))
@@ -107,9 +101,8 @@ public class StratumChain extends AbstractExecutionThreadService {
         try {
             if (storeHeight > height - 1) {
                 // Store is higher - we are in reorg
-                Block storePrev = store.get(height - 1);
                 // Check if our previous equals peer previous
-                if (block.getPrevBlockHash().equals(storePrev.getHash())) {
+                if (store.getHeight(block.getPrevBlockHash()) == height - 1) {
                     // Found the reorg spot.  Truncate blocks beyond it, and fall through to add the block from the server.
                     store.truncate(height - 1);
                     storeHeight = store.getHeight();
@@ -195,18 +188,23 @@ public class StratumChain extends AbstractExecutionThreadService {
 
     // Return true if we should continue to next chunk
     private boolean handleChunk(StratumMessage item) {
-        byte[] data = Utils.HEX.decode(item.result.asText());
-        int num = data.length / Block.HEADER_SIZE;
+        ByteBuffer data = item.readResultBuffer();
+        int num = data.remaining() / Block.HEADER_SIZE;
         log.info("chunk size {}", num);
         long storeHeight = store.getHeight();
         int start = (int) (storeHeight + 1) % NetworkParameters.INTERVAL;
-        for (int i = start ; i < num ; i++) {
-            Block block = new Block(params, Arrays.copyOfRange(data, i * Block.HEADER_SIZE, (i + 1) * Block.HEADER_SIZE));
-            if (!store.add(block)) {
-                log.info("need reorg at {}", storeHeight - 1);
-                client.call("blockchain.block.get_header", storeHeight - 1); // Initiate a reorg
-                return false;
+        try {
+            if (start < num) {
+                data.position(start * Block.HEADER_SIZE);
+                data.limit(num * Block.HEADER_SIZE);
+                if (store.addAll(data) < num - start) {
+                    log.info("need reorg at {}", storeHeight - 1);
+                    client.call("blockchain.block.get_header", storeHeight - 1); // Initiate a reorg
+                    return false;
+                }
             }
+        } finally {
+            item.release();
         }
         if (store.getHeight() > storeHeight) {
             notifyHeight();
@@ -228,21 +226,12 @@ public class StratumChain extends AbstractExecutionThreadService {
 
     @Override
     protected Executor executor() {
-        return makeExecutor(serviceName());
-    }
-
-    private static Executor makeExecutor(final String name) {
-        return new Executor() {
-            @Override
-            public void execute(Runnable command) {
-                Thread thread = threadFactory.newThread(command);
-                try {
-                    thread.setName(name);
-                } catch (SecurityException e) {
-                    // OK if we can't set the name in this environment.
-                }
-                thread.start();
-            }
-        };
+        return threadModel.newServiceExecutor(serviceName());
+    }
+
+    /** Must be set before the chain is started */
+    public void setThreadModel(ThreadModel threadModel) {
+        checkState(state() == State.NEW);
+        this.threadModel = checkNotNull(threadModel);
     }
 }
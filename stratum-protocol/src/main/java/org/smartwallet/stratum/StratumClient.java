@@ -1,32 +1,41 @@
 package org.smartwallet.stratum;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Queues;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -34,35 +43,105 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
+ * A client for the Electrum stratum protocol.
+ *
+ * <p>By default, each client owns a thread that reads from a blocking socket.  If constructed with a
+ * {@link StratumEventLoop}, the client owns no threads and is driven by the shared selector instead.
+ *
  * Created by devrandom on 2015-Aug-25.
  */
-public class StratumClient extends AbstractExecutionThreadService {
+public class StratumClient extends AbstractService implements NioConnection.Listener, StratumDecoder.Handler {
     public static final int SUBSCRIPTION_QUEUE_CAPACITY = 10;
     public static final int PING_PERIOD = 60;
+    // Address callbacks run on this many serial lanes of the task executor
+    public static final int ADDRESS_CALLBACK_STRIPES = 16;
+    public static final int MAX_BATCH_SIZE = 100;
+    // Most requests fit in one pooled buffer - large ones, such as broadcasts, get their own
+    private static final int OUTPUT_BUFFER_SIZE = 4096;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Fits a decoded header chunk
+    private static final int RESULT_BUFFER_SIZE = NetworkParameters.INTERVAL * Block.HEADER_SIZE;
     public static final String BLOCKCHAIN_HEADERS_SUBSCRIBE = "blockchain.headers.subscribe";
     public static final String BLOCKCHAIN_ADDRESS_SUBSCRIBE = "blockchain.address.subscribe";
+    public static final String BLOCKCHAIN_TRANSACTION_GET = "blockchain.transaction.get";
+    public static final String BLOCKCHAIN_TRANSACTION_BROADCAST = "blockchain.transaction.broadcast";
+    // Headers this far below the tip are assumed to be final, for caching
+    public static final int DEFAULT_CACHE_REORG_DEPTH = 10;
     public static final String BLOCKCHAIN_GET_HEADER = "blockchain.block.get_header";
     public static final String BLOCKCHAIN_GET_CHUNK = "blockchain.block.get_chunk";
+    public static final String SERVER_VERSION = "server.version";
+    // Calls and subscriptions resent per second after a reconnect
+    public static final double DEFAULT_REPLAY_RATE = 200;
     protected static Logger logger = LoggerFactory.getLogger("StratumClient");
     private static CycleDetectingLockFactory lockFactory = CycleDetectingLockFactory.newInstance(CycleDetectingLockFactory.Policies.DISABLED);
     protected final ObjectMapper mapper;
     private final ConcurrentMap<Long, PendingCall> calls;
     private final ReentrantLock lock;
-    private final ConcurrentMap<String, BlockingQueue<StratumMessage>> subscriptions;
+    private final SubscriptionDispatcher subscriptions;
     private final NetworkParameters params;
+    private final StratumEventLoop eventLoop;
 
     protected List<InetSocketAddress> serverAddresses;
     protected Socket socket;
     protected OutputStream outputStream;
-    protected BufferedReader reader;
+    protected InputStream inputStream;
+    // Per connection, reset on connect
+    private StratumDecoder decoder;
+    private int maxFrameSize = StratumDecoder.DEFAULT_MAX_FRAME_SIZE;
+    private volatile boolean isRawResults;
+    @GuardedBy("StratumClient-stream")
+    protected volatile NioConnection connection;
+    protected volatile StratumWriter writer;
+    private final BufferPool bufferPool = new BufferPool(OUTPUT_BUFFER_SIZE, 64);
+    private final BufferPool resultPool = new BufferPool(RESULT_BUFFER_SIZE, 2);
     private boolean isTls;
     private AtomicLong currentId;
     private Map<Address, Long> subscribedAddresses;
     private long subscribedHeaders = 0;
     private Pinger pinger;
     private boolean isQueue;
-    private InetSocketAddress peerAddress;
+    private long batchWindowMillis;
+    // Cleared if the server rejects a JSON-RPC batch
+    private volatile boolean isBatchSupported = true;
+    private final Queue<StratumMessage> pendingBatch = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingBatchSize = new AtomicInteger();
+    private volatile InetSocketAddress peerAddress;
     private String peerVersion;
+    private volatile ServerHealth serverHealth = new ServerHealth();
+    private volatile long callTimeoutMillis;
+    private ThreadModel threadModel = ThreadModel.getDefault();
+    // Created on the first address callback, since the thread model may be set before that
+    private StripedExecutor addressCallbackExecutor;
+    private int maxInFlight = Integer.MAX_VALUE;
+    private Semaphore window = new Semaphore(Integer.MAX_VALUE);
+    // Set on threads that read replies in blocking mode
+    private static final ThreadLocal<Boolean> isIoThread = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+    // When the current connection attempt started
+    private long connectStartMillis;
+    // Shared by all clients, so that its session cache lets reconnects resume TLS sessions with each server
+    private static SSLContext sslContext;
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+    private final AtomicLong tlsResumptions = new AtomicLong();
+    @Nullable private volatile ResponseCache responseCache;
+    private volatile int cacheReorgDepth = DEFAULT_CACHE_REORG_DEPTH;
+    // Height of the server's chain tip, from the headers subscription, or zero if unknown
+    private volatile long tipHeight;
+    // Calls in flight by method and params, whose reply is shared with identical calls
+    private final ConcurrentMap<String, SharedCall> sharedCalls = Maps.newConcurrentMap();
+    private volatile boolean isShareCalls = true;
+    private final AtomicLong sharedCallCount = new AtomicLong();
+    private volatile StratumMetrics metrics = StratumMetrics.NOOP;
+    private volatile WireTrace wireTrace = new WireTrace();
+    // Shared by all connections, so that quick reconnects don't get a fresh burst each
+    private volatile RateLimiter replayLimiter = RateLimiter.create(DEFAULT_REPLAY_RATE);
+    private volatile boolean isReplayBroadcasts;
+    // Incremented on each connection, so that the replay for an earlier one stops
+    private final AtomicLong replayGeneration = new AtomicLong();
 
     public BlockingQueue<StratumMessage> getHeadersQueue() {
         return getSubscriptionQueue(BLOCKCHAIN_HEADERS_SUBSCRIBE);
@@ -90,13 +169,42 @@ public class StratumClient extends AbstractExecutionThreadService {
         }
     }
 
+    /** The server we are connected or connecting to, if any */
+    InetSocketAddress getPeerAddress() {
+        return peerAddress;
+    }
+
+    /** The number of calls that were sent, or are waiting to be sent, and have not been answered */
+    int getPendingCount() {
+        return calls.size();
+    }
+
+    /**
+     * Outgoing frames of a higher priority are written before those of a lower one, including when calls are resent
+     * after a reconnect.  Lower priorities still get a share, so they progress under load.
+     */
+    public enum Priority {
+        /** Pings, which close the connection if they time out */
+        CONTROL,
+        /** Calls someone is waiting for, such as headers, broadcasts and subscriptions.  The default. */
+        INTERACTIVE,
+        /** Background work in volume, such as fetching the transactions of a wallet being restored */
+        BULK
+    }
+
     static class PendingCall {
         final StratumMessage message;
         final SettableFuture<StratumMessage> future;
+        final Priority priority;
+        // Last written as part of a JSON-RPC batch
+        boolean isBatched;
+        // Written to some connection.  Only tracked for broadcasts.
+        volatile boolean isSent;
 
-        PendingCall(StratumMessage message, SettableFuture<StratumMessage> future) {
+        PendingCall(StratumMessage message, SettableFuture<StratumMessage> future, Priority priority) {
             this.message = message;
             this.future = future;
+            this.priority = priority;
         }
 
         boolean isSubscriptionCall() {
@@ -106,7 +214,7 @@ public class StratumClient extends AbstractExecutionThreadService {
 
     static class PendingSubscription extends PendingCall {
         PendingSubscription(StratumMessage message, SettableFuture<StratumMessage> future) {
-            super(message, future);
+            super(message, future, Priority.INTERACTIVE);
         }
 
         @Override
@@ -115,25 +223,18 @@ public class StratumClient extends AbstractExecutionThreadService {
         }
     }
 
-    static ThreadFactory threadFactory =
+    static ThreadFactory timerThreadFactory =
             new ThreadFactoryBuilder()
                     .setDaemon(true)
+                    .setNameFormat("stratum-timer-%d")
                     .setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
                         @Override
                         public void uncaughtException(Thread t, Throwable e) {
                             logger.error("uncaught exception", e);
                         }
                     }).build();
-    static ThreadFactory pingerThreadFactory =
-            new ThreadFactoryBuilder()
-                    .setDaemon(true)
-                    .setNameFormat("pinger-%d")
-                    .setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
-                        @Override
-                        public void uncaughtException(Thread t, Throwable e) {
-                            logger.error("uncaught exception", e);
-                        }
-                    }).build();
+    /** Timer for blocking clients.  Clients on an event loop use the loop's timer. */
+    private static ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(timerThreadFactory);
 
     public StratumClient() {
         this(NetworkParameters.fromID(NetworkParameters.ID_TESTNET), null, true);
@@ -144,13 +245,27 @@ public class StratumClient extends AbstractExecutionThreadService {
     }
 
     public StratumClient(NetworkParameters params, List<InetSocketAddress> addresses, boolean isTls) {
+        this(params, addresses, isTls, null);
+    }
+
+    /**
+     * @param eventLoop if not null, use non-blocking sockets driven by this loop instead of a thread per client.
+     *                  The loop must be running before this client is started.
+     */
+    public StratumClient(NetworkParameters params, List<InetSocketAddress> addresses, boolean isTls,
+                         StratumEventLoop eventLoop) {
         this.params = params;
+        this.eventLoop = eventLoop;
         serverAddresses = (addresses != null) ? addresses : getDefaultAddresses();
         mapper = new ObjectMapper();
         mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
         currentId = new AtomicLong(1000);
         calls = Maps.newConcurrentMap();
-        subscriptions = Maps.newConcurrentMap();
+        subscriptions = new SubscriptionDispatcher(SubscriptionDispatcher.OverflowPolicy.GROW,
+                SUBSCRIPTION_QUEUE_CAPACITY);
+        // Only the latest status of an address matters
+        subscriptions.setOverflowPolicy(BLOCKCHAIN_ADDRESS_SUBSCRIBE, SubscriptionDispatcher.OverflowPolicy.COALESCE,
+                SUBSCRIPTION_QUEUE_CAPACITY);
         lock = lockFactory.newReentrantLock("StratumClient-stream");
         this.isTls = isTls;
         subscribedAddresses = Maps.newConcurrentMap();
@@ -177,24 +292,21 @@ public class StratumClient extends AbstractExecutionThreadService {
         return addresses;
     }
 
-    @Override
     protected Executor executor() {
-        return makeExecutor(serviceName());
+        return threadModel.newServiceExecutor(getClass().getSimpleName());
     }
 
-    private static Executor makeExecutor(final String name) {
-        return new Executor() {
-            @Override
-            public void execute(Runnable command) {
-                Thread thread = threadFactory.newThread(command);
-                try {
-                    thread.setName(name);
-                } catch (SecurityException e) {
-                    // OK if we can't set the name in this environment.
-                }
-                thread.start();
-            }
-        };
+    /**
+     * Run the reader, writer and async calls with this model instead of {@link ThreadModel#getDefault()}.
+     * Must be set before the client is started.
+     */
+    public void setThreadModel(ThreadModel threadModel) {
+        checkState(state() == State.NEW);
+        this.threadModel = checkNotNull(threadModel);
+    }
+
+    public ThreadModel getThreadModel() {
+        return threadModel;
     }
 
     static class TrustAllX509TrustManager implements X509TrustManager {
@@ -217,14 +329,8 @@ public class StratumClient extends AbstractExecutionThreadService {
         lock.lock();
         try {
             if (isTls) {
-                try {
-                    SSLContext sc = SSLContext.getInstance("TLS");
-                    sc.init(null, new TrustManager[]{new TrustAllX509TrustManager()}, new SecureRandom());
-                    SocketFactory factory = sc.getSocketFactory();
-                    socket = factory.createSocket();
-                } catch (NoSuchAlgorithmException | KeyManagementException e) {
-                    Throwables.propagate(e);
-                }
+                SocketFactory factory = getSslContext().getSocketFactory();
+                socket = factory.createSocket();
             } else {
                 socket = new Socket();
             }
@@ -236,36 +342,290 @@ public class StratumClient extends AbstractExecutionThreadService {
         }
     }
 
+    private static synchronized SSLContext getSslContext() {
+        if (sslContext == null) {
+            try {
+                SSLContext sc = SSLContext.getInstance("TLS");
+                sc.init(null, new TrustManager[]{new TrustAllX509TrustManager()}, new SecureRandom());
+                sslContext = sc;
+            } catch (NoSuchAlgorithmException | KeyManagementException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        return sslContext;
+    }
+
+    private void recordHandshake(SSLSession session, long startMillis) {
+        tlsHandshakes.incrementAndGet();
+        // A resumed session was created by an earlier handshake
+        if (session.getCreationTime() < startMillis)
+            tlsResumptions.incrementAndGet();
+    }
+
+    /** @return the fraction of TLS handshakes that resumed an earlier session, or zero if there were none */
+    public double getTlsResumptionRate() {
+        long handshakes = tlsHandshakes.get();
+        return handshakes == 0 ? 0 : (double) tlsResumptions.get() / handshakes;
+    }
+
     private void connectSocket() throws IOException {
-        // TODO use random, exponentially backoff from failed connections
-        InetSocketAddress address = serverAddresses.remove(0);
-        serverAddresses.add(address);
-        // Force resolution
-        peerAddress = new InetSocketAddress(address.getHostString(), address.getPort());
+        peerAddress = nextServerAddress();
         logger.info("Opening a socket to " + peerAddress.getHostString() + ":" + peerAddress.getPort());
-        socket.connect(peerAddress); // TODO timeout
+        long start = System.currentTimeMillis();
+        try {
+            socket.connect(peerAddress); // TODO timeout
+            if (socket instanceof SSLSocket) {
+                // Handshake now rather than on first use, so that failures count against the server
+                ((SSLSocket) socket).startHandshake();
+                recordHandshake(((SSLSocket) socket).getSession(), start);
+            }
+        } catch (IOException e) {
+            serverHealth.recordFailure(peerAddress);
+            metrics.onConnectFailed(peerAddress, e);
+            throw e;
+        }
+        long connectMillis = System.currentTimeMillis() - start;
+        serverHealth.recordConnected(peerAddress, connectMillis);
+        metrics.onConnected(peerAddress, connectMillis);
+    }
+
+    private InetSocketAddress nextServerAddress() {
+        InetSocketAddress address;
+        // Claim the server before another client sharing the table makes its choice, see getExcludedServers
+        synchronized (serverHealth) {
+            address = serverHealth.select(serverAddresses, getExcludedServers());
+            peerAddress = address;
+        }
+        // Force resolution
+        return new InetSocketAddress(address.getHostString(), address.getPort());
+    }
+
+    /** Servers to avoid when there are others to choose from */
+    protected Collection<InetSocketAddress> getExcludedServers() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Share a server health table, for example with other clients or one that is kept across restarts.
+     * By default, each client has its own in-memory table.  Takes effect on the next connection.
+     */
+    public void setServerHealth(ServerHealth serverHealth) {
+        this.serverHealth = checkNotNull(serverHealth);
+    }
+
+    public ServerHealth getServerHealth() {
+        return serverHealth;
+    }
+
+    /** How long to wait before reconnecting, which is zero unless all servers are backing off */
+    private long getReconnectDelay() {
+        return serverHealth.reconnectDelay(serverAddresses);
     }
 
-    @Override
     protected void startUp() throws Exception {
-        createSocket();
+        if (eventLoop == null)
+            createSocket();
+    }
+
+    // Same lifecycle as AbstractExecutionThreadService, except that with an event loop there is no thread
+    // to run - the loop calls us back as the connection makes progress.
+    @Override
+    protected final void doStart() {
+        if (eventLoop != null) {
+            try {
+                startUp();
+                notifyStarted();
+                connectNio();
+            } catch (Throwable t) {
+                notifyFailed(t);
+            }
+            return;
+        }
+        executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    startUp();
+                    notifyStarted();
+                    if (isRunning()) {
+                        try {
+                            StratumClient.this.run();
+                        } catch (Throwable t) {
+                            try {
+                                shutDown();
+                            } catch (Exception e) {
+                                logger.warn("exception in shutdown after failure", e);
+                            }
+                            notifyFailed(t);
+                            return;
+                        }
+                    }
+                    shutDown();
+                    notifyStopped();
+                } catch (Throwable t) {
+                    notifyFailed(t);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected final void doStop() {
+        triggerShutdown();
+        if (eventLoop != null) {
+            try {
+                shutDown();
+                notifyStopped();
+            } catch (Throwable t) {
+                notifyFailed(t);
+            }
+        }
+    }
+
+    private void connectNio() {
+        try {
+            InetSocketAddress address = nextServerAddress();
+            SSLEngine engine = null;
+            if (isTls) {
+                // The host and port key the session cache, so that a reconnect can resume the session
+                engine = getSslContext().createSSLEngine(address.getHostString(), address.getPort());
+                engine.setUseClientMode(true);
+            }
+            logger.info("Opening a channel to " + address.getHostString() + ":" + address.getPort());
+            lock.lock();
+            try {
+                if (!isRunning())
+                    return;
+                peerAddress = address;
+                connectStartMillis = System.currentTimeMillis();
+                connection = NioConnection.open(eventLoop, address, engine, this, bufferPool);
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("failed to open channel, will reconnect", e);
+            if (peerAddress != null) {
+                serverHealth.recordFailure(peerAddress);
+                metrics.onConnectFailed(peerAddress, e);
+            }
+            scheduleReconnect(getReconnectDelay());
+        }
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return eventLoop != null ? eventLoop.getScheduler() : timer;
+    }
+
+    private void scheduleReconnect(long delayMillis) {
+        ScheduledExecutorService scheduler = eventLoop.getScheduler();
+        // The event loop closes its connections after its scheduler is shut down
+        if (!isRunning() || scheduler.isShutdown())
+            return;
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (isRunning())
+                        connectNio();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.info("not reconnecting, event loop is shutting down");
+        }
+    }
+
+    @Override
+    public void onConnected(NioConnection connection) {
+        logger.info("connect");
+        lock.lock();
+        Pinger newPinger;
+        Replay replay;
+        try {
+            if (connection != this.connection)
+                return;
+            long connectMillis = System.currentTimeMillis() - connectStartMillis;
+            serverHealth.recordConnected(peerAddress, connectMillis);
+            metrics.onConnected(peerAddress, connectMillis);
+            SSLSession session = connection.getSession();
+            if (session != null)
+                recordHandshake(session, connectStartMillis);
+            newPinger = new Pinger(eventLoop.getScheduler(), connection, peerAddress);
+            pinger = newPinger;
+            decoder = newDecoder();
+            isConnected = true;
+            replay = resendPending();
+        } finally {
+            lock.unlock();
+        }
+        replay.run();
+        newPinger.start();
+    }
+
+    @Override
+    public void onData(NioConnection connection, byte[] data, int offset, int length) throws IOException {
+        // An exception closes the connection, and we reconnect
+        decoder.decode(data, offset, length);
+    }
+
+    @Override
+    public void onClosed(NioConnection connection, Throwable cause) {
+        Pinger oldPinger;
+        lock.lock();
+        try {
+            if (connection != this.connection)
+                return;
+            this.connection = null;
+            if (isRunning()) {
+                if (isConnected) {
+                    serverHealth.recordDisconnect(peerAddress);
+                    metrics.onDisconnected(peerAddress, cause);
+                } else {
+                    serverHealth.recordFailure(peerAddress);
+                    metrics.onConnectFailed(peerAddress, cause);
+                }
+            }
+            isConnected = false;
+            clearBatch();
+            oldPinger = pinger;
+        } finally {
+            lock.unlock();
+        }
+        if (oldPinger != null)
+            oldPinger.stop();
+        if (cause != null)
+            logger.error("connection failed, will reconnect", cause);
+        scheduleReconnect(getReconnectDelay());
     }
 
     private void connect() throws IOException {
         logger.info("connect");
-        pinger = new Pinger();
         connectSocket();
+        pinger = new Pinger(timer, socket, peerAddress);
         outputStream = socket.getOutputStream();
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        inputStream = socket.getInputStream();
+        decoder = newDecoder();
+        writer = new StratumWriter(outputStream, bufferPool, socket);
+        threadModel.newServiceExecutor("StratumWriter").execute(writer);
         pinger.start();
     }
 
     class Pinger implements Runnable {
-        private final ScheduledExecutorService scheduler =
-                Executors.newSingleThreadScheduledExecutor(pingerThreadFactory);
+        private final ScheduledExecutorService scheduler;
+        // The connection we are pinging, so we don't close a new one due to race in onFailure
+        private final Closeable target;
+        private final InetSocketAddress address;
         private ScheduledFuture<?> handle;
         private boolean first = true;
         private SettableFuture<StratumMessage> future;
+        // Pings cancelled by stop are not the server's fault
+        private volatile boolean isStopped;
+
+        /** Ping using a scheduler shared with other clients */
+        Pinger(ScheduledExecutorService scheduler, Closeable target, InetSocketAddress address) {
+            this.scheduler = scheduler;
+            this.target = target;
+            this.address = address;
+        }
 
         public void start() {
             checkState(handle == null);
@@ -277,16 +637,11 @@ public class StratumClient extends AbstractExecutionThreadService {
             if (handle == null)
                 return;
             checkNotNull(handle);
-            handle.cancel(true);
+            isStopped = true;
+            // Don't interrupt the shared scheduler
+            handle.cancel(false);
             if (future != null)
                 future.cancel(true);
-            scheduler.shutdown();
-            try {
-                if (!scheduler.awaitTermination(1, TimeUnit.SECONDS))
-                    throw new RuntimeException("scheduler did not terminate");
-            } catch (InterruptedException e) {
-                Throwables.propagate(e);
-            }
         }
 
         @Override
@@ -304,16 +659,20 @@ public class StratumClient extends AbstractExecutionThreadService {
                 if (future.cancel(true))
                     return; // cancel succeeded means that we timed out
             }
-            // Keep a copy of the socket so we don't close a new one due to race in onFailure
-            final Socket mySocket = socket;
             future = SettableFuture.create();
-            call("server.version", Lists.<Object>newArrayList("JavaStratumClient 0.1"), false, future);
+            final long start = System.currentTimeMillis();
+            // Pings are not held back by a full window
+            doCall(SERVER_VERSION, Lists.<Object>newArrayList("JavaStratumClient 0.1"), false, future, false,
+                    Priority.CONTROL);
             Futures.addCallback(future, new FutureCallback<StratumMessage>() {
                 @Override
                 public void onSuccess(StratumMessage result) {
+                    long rtt = System.currentTimeMillis() - start;
+                    serverHealth.recordPing(address, rtt);
+                    metrics.onPing(address, rtt);
                     if (first) {
-                        logger.info("server version {}", result.result);
-                        peerVersion = result.result.asText();
+                        logger.info("server version {}", result.readResult());
+                        peerVersion = result.readResult().asText();
                         first = false;
                     } else
                         logger.info("pong");
@@ -321,9 +680,12 @@ public class StratumClient extends AbstractExecutionThreadService {
 
                 @Override
                 public void onFailure(Throwable ignored1) {
+                    if (isStopped)
+                        return;
                     logger.error("ping failure");
+                    serverHealth.recordFailure(address);
                     try {
-                        mySocket.close();
+                        target.close();
                     } catch (IOException ignored) {
                     }
                 }
@@ -331,13 +693,20 @@ public class StratumClient extends AbstractExecutionThreadService {
         }
     }
 
-    @Override
     protected void triggerShutdown() {
         logger.info("trigger shutdown");
         closeSocket();
     }
 
     private void disconnect() {
+        if (pinger != null) {
+            pinger.stop();
+            pinger = null;
+        }
+        StratumWriter oldWriter = writer;
+        writer = null;
+        if (oldWriter != null)
+            oldWriter.stop();
         closeSocket();
     }
 
@@ -345,6 +714,11 @@ public class StratumClient extends AbstractExecutionThreadService {
         // See matching lock in createSocket
         lock.lock();
         try {
+            if (eventLoop != null) {
+                if (connection != null)
+                    connection.close();
+                return;
+            }
             socket.close();
         } catch (IOException e) {
             logger.error("failed to close socket", e);
@@ -353,51 +727,66 @@ public class StratumClient extends AbstractExecutionThreadService {
         }
     }
 
-    @Override
     protected void shutDown() {
         logger.info("shutdown");
+        serverHealth.save();
         try {
             lock.lock();
-            logger.info("stop pinger");
-            pinger.stop();
-            logger.info("stopped pinger");
-            Exception e = new EOFException("shutting down");
-            for (PendingCall value : calls.values()) {
-                value.future.setException(e);
-            }
-            for (BlockingQueue<StratumMessage> queue : subscriptions.values()) {
-                try {
-                    queue.put(StratumMessage.SENTINEL);
-                } catch (InterruptedException e1) {
-                    logger.warn("interrupted while trying to queue sentinel");
-                }
+            if (pinger != null) {
+                logger.info("stop pinger");
+                pinger.stop();
+                logger.info("stopped pinger");
             }
+            failPending(new EOFException("shutting down"));
+            subscriptions.close();
         } finally {
             lock.unlock();
         }
+        // The reader skips disconnect once we are stopping, so the writer is still waiting for frames
+        StratumWriter oldWriter = writer;
+        writer = null;
+        if (oldWriter != null)
+            oldWriter.stop();
     }
 
-    @GuardedBy("StratumClient-stream")
-    boolean isConnected;
+    private void failPending(Exception e) {
+        for (PendingCall value : calls.values()) {
+            value.future.setException(e);
+        }
+    }
+
+    // Written under the stream lock, but read without it by callers
+    volatile boolean isConnected;
 
-    @Override
     protected void run() {
+        isIoThread.set(true);
         while (isRunning()) {
             try {
                 connect();
                 setConnected(true);
                 runClient();
                 setConnected(false);
+                if (isRunning()) {
+                    serverHealth.recordDisconnect(peerAddress);
+                    metrics.onDisconnected(peerAddress, null);
+                }
                 disconnect();
                 createSocket();
+                Utils.sleep(getReconnectDelay());
             } catch (IOException e) {
                 logger.error("IOException", e);
+                boolean wasConnected = isConnected;
                 setConnected(false);
                 if (isRunning()) {
                     logger.error("will reconnect");
+                    // Failed connects were already recorded
+                    if (wasConnected) {
+                        serverHealth.recordDisconnect(peerAddress);
+                        metrics.onDisconnected(peerAddress, e);
+                    }
                     disconnect();
                     createSocket();
-                    Utils.sleep(3000 + new Random().nextInt(4000));
+                    Utils.sleep(getReconnectDelay());
                 }
             } catch (Throwable t) {
                 logger.error("client", t);
@@ -409,50 +798,188 @@ public class StratumClient extends AbstractExecutionThreadService {
     private void setConnected(boolean value) {
         lock.lock();
         isConnected = value;
+        if (!value)
+            clearBatch();
         lock.unlock();
     }
 
     protected void runClient() throws IOException {
+        Replay replay;
         lock.lock();
-
         try {
-            for (Map.Entry<Address, Long> entry : subscribedAddresses.entrySet()) {
-                writeMessage(makeMessage("blockchain.address.subscribe", entry.getKey().toString(), entry.getValue()));
-            }
-
-            if (subscribedHeaders > 0) {
-                writeMessage(makeMessage("blockchain.headers.subscribe", null, subscribedHeaders));
-            }
-
-            for (PendingCall call : calls.values()) {
-                // Subscriptions are reissued above
-                if (!call.isSubscriptionCall())
-                    writeMessage(call.message);
-            }
+            replay = resendPending();
         } finally {
             lock.unlock();
         }
+        replay.run();
 
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
         while (true) {
-            String line;
-            line = reader.readLine();
-            if (line == null) {
+            int n = inputStream.read(buffer);
+            if (n < 0) {
                 logger.info("< EOF");
                 closeSocket();
                 return;
             }
-            logger.info("< {}", line);
+            decoder.decode(buffer, 0, n);
+        }
+    }
+
+    private StratumDecoder newDecoder() {
+        return new StratumDecoder(mapper, resultPool, maxFrameSize, this, wireTrace);
+    }
+
+    /**
+     * Keep call results as raw JSON, to be bound directly to the caller's type with
+     * {@link StratumMessage#readResult(Class)} or decoded with {@link StratumMessage#readResultHex()}
+     * without building a tree first.  Header chunks are decoded from hex as they are received,
+     * see {@link StratumMessage#readResultBuffer()}.  Callers must then use the {@code readResult} accessors
+     * instead of {@link StratumMessage#result}.  Off by default.
+     */
+    public void setRawResults(boolean isRawResults) {
+        this.isRawResults = isRawResults;
+    }
+
+    /**
+     * Received lines longer than this cause a disconnect.  Takes effect on the next connection.
+     * Defaults to {@link StratumDecoder#DEFAULT_MAX_FRAME_SIZE}.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        checkState(maxFrameSize > 0);
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    public StratumDecoder.ResultMode resultMode(long id) {
+        PendingCall call = calls.get(id);
+        if (call == null)
+            return StratumDecoder.ResultMode.SKIP;
+        if (!isRawResults)
+            return StratumDecoder.ResultMode.TREE;
+        if (call.message.method.equals(BLOCKCHAIN_GET_CHUNK))
+            return StratumDecoder.ResultMode.HEX;
+        return StratumDecoder.ResultMode.RAW;
+    }
+
+    @Override
+    public void onFrame(int length) {
+        metrics.onFrameReceived(length);
+    }
+
+    @Override
+    public String callMethod(long id) {
+        PendingCall call = calls.get(id);
+        return call != null ? call.message.method : null;
+    }
+
+    @Override
+    public void onMessage(StratumMessage message) {
+        dispatch(message);
+    }
+
+    /**
+     * Collect the subscriptions and pending calls to send on a new connection.  Run the replay after releasing
+     * the lock, since it may complete calls.
+     */
+    @GuardedBy("StratumClient-stream")
+    private Replay resendPending() {
+        Queue<StratumMessage> messages = new ArrayDeque<>();
+        if (subscribedHeaders > 0)
+            messages.add(makeMessage(BLOCKCHAIN_HEADERS_SUBSCRIBE, null, subscribedHeaders));
+        for (Map.Entry<Address, Long> entry : subscribedAddresses.entrySet())
+            messages.add(makeMessage(BLOCKCHAIN_ADDRESS_SUBSCRIBE, entry.getKey().toString(), entry.getValue()));
+        // Higher priorities first
+        for (Priority priority : Priority.values()) {
+            for (PendingCall call : calls.values()) {
+                // Subscriptions are reissued above
+                if (!call.isSubscriptionCall() && call.priority == priority)
+                    messages.add(call.message);
+            }
+        }
+        return new Replay(replayGeneration.incrementAndGet(), messages);
+    }
+
+    /**
+     * Resends subscriptions and pending calls on a new connection, no faster than the replay rate, so that a
+     * wallet with many addresses doesn't flood the server.  Calls whose reply is in the response cache are answered
+     * from it instead, and broadcasts that may have reached the previous server fail unless
+     * {@link #setReplayBroadcasts(boolean)} is on.  Stops when the connection it was started for is gone.
+     *
+     * <p>Runs once on the connecting thread, and then on the scheduler until done.
+     */
+    private class Replay implements Runnable {
+        final long generation;
+        // Only touched by one run at a time
+        final Queue<StratumMessage> messages;
+
+        Replay(long generation, Queue<StratumMessage> messages) {
+            this.generation = generation;
+            this.messages = messages;
+        }
+
+        @Override
+        public void run() {
+            RateLimiter limiter = replayLimiter;
+            List<StratumMessage> batch = Lists.newArrayList();
             StratumMessage message;
-            message = mapper.readValue(line, StratumMessage.class);
-            if (message.isResult())
-                handleResult(message);
-            else if (message.isMessage())
-                handleMessage(message.method, message);
-            else if (message.isError())
-                handleError(message);
-            else {
-                logger.warn("unknown message type");
+            // No lock needed.  A message of a replay that was just replaced may go out twice, which is harmless.
+            while (generation == replayGeneration.get() && isConnected && (message = messages.peek()) != null) {
+                if (!isSubscription(message.method) && !isReplayed(message)) {
+                    messages.poll();
+                    continue;
+                }
+                if (!limiter.tryAcquire())
+                    break;
+                messages.poll();
+                if (batchWindowMillis > 0 && !isSubscription(message.method))
+                    batch.add(message);
+                else
+                    writeMessage(message, priorityOf(message));
             }
+            writeBatch(batch);
+            if (!messages.isEmpty() && generation == replayGeneration.get() && isConnected) {
+                long delay = Math.max(1, (long) Math.ceil(1000 / limiter.getRate()));
+                getScheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /** @return false if the call completed meanwhile, or we completed it without resending */
+        private boolean isReplayed(StratumMessage message) {
+            PendingCall call = calls.get(message.id);
+            if (call == null)
+                return false;
+            ResponseCache cache = responseCache;
+            if (cache != null && isCacheable(message.method)) {
+                StratumMessage reply = cachedReply(cache, message, cacheKey(message));
+                if (reply != null) {
+                    complete(message, call.future, reply);
+                    return false;
+                }
+            }
+            if (call.isSent && !isReplayBroadcasts && message.method.equals(BLOCKCHAIN_TRANSACTION_BROADCAST)) {
+                call.future.setException(
+                        new IOException("disconnected before the broadcast was answered, it may have been sent"));
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static boolean isSubscription(String method) {
+        return method.equals(BLOCKCHAIN_HEADERS_SUBSCRIBE) || method.equals(BLOCKCHAIN_ADDRESS_SUBSCRIBE);
+    }
+
+    private void dispatch(StratumMessage message) {
+        if (message.isResult())
+            handleResult(message);
+        else if (message.isMessage())
+            handleMessage(message.method, message);
+        else if (message.isError())
+            handleError(message);
+        else if (message.id == null && message.error != null)
+            handleBatchRejected(message);
+        else {
+            logger.warn("unknown message type");
         }
     }
 
@@ -469,34 +996,588 @@ public class StratumClient extends AbstractExecutionThreadService {
     }
 
     public ListenableFuture<StratumMessage> call(String method, List<Object> params) {
+        return call(method, params, defaultPriority(method));
+    }
+
+    /** Call with a priority other than the default of the method, see {@link #defaultPriority(String)} */
+    public ListenableFuture<StratumMessage> call(String method, List<Object> params, Priority priority) {
         SettableFuture<StratumMessage> future = SettableFuture.create();
-        call(method, params, isQueue, future);
+        SettableFuture<StratumMessage> callFuture = share(method, params, future);
+        if (callFuture != null)
+            call(method, params, isQueue, callFuture, priority);
         return future;
     }
 
+    /** @return {@link Priority#CONTROL} for pings, and {@link Priority#INTERACTIVE} for everything else */
+    public static Priority defaultPriority(String method) {
+        return method.equals(SERVER_VERSION) ? Priority.CONTROL : Priority.INTERACTIVE;
+    }
+
+    /**
+     * Call with a deadline.  If there is no reply in time, the future fails with a {@link TimeoutException}
+     * and the call is forgotten.
+     */
+    public ListenableFuture<StratumMessage> call(String method, List<Object> params, long timeoutMillis) {
+        SettableFuture<StratumMessage> future = SettableFuture.create();
+        SettableFuture<StratumMessage> callFuture = share(method, params, future);
+        if (future.isDone())
+            return future;
+        setDeadline(future, timeoutMillis);
+        if (callFuture != null)
+            call(method, params, isQueue, callFuture);
+        return future;
+    }
+
+    /** Make the call on the task executor of the thread model, so that the caller never waits */
     public ListenableFuture<StratumMessage> callAsync(final String method, final List<Object> params) {
         final SettableFuture<StratumMessage> future = SettableFuture.create();
-        // TODO convert to executor
-        Thread thread = new Thread(new Runnable() {
+        final SettableFuture<StratumMessage> callFuture = share(method, params, future);
+        if (callFuture == null)
+            return future;
+        threadModel.getTaskExecutor().execute(new Runnable() {
             @Override
             public void run() {
-                call(method, params, isQueue, future);
+                call(method, params, isQueue, callFuture);
             }
         });
-        thread.setName("call-thread");
-        thread.start();
         return future;
     }
 
+    /**
+     * Cache responses that never change, so that they are served without a call:
+     * <ul>
+     *     <li>{@code blockchain.transaction.get}, whose result is fixed by the hash, which we check</li>
+     *     <li>{@code blockchain.block.get_header} for heights buried by the reorg depth</li>
+     *     <li>{@code blockchain.block.get_chunk} for complete chunks buried by the reorg depth</li>
+     * </ul>
+     * Headers are only cached once the client has subscribed to headers, since that tells us the tip.
+     * Applies to {@link #call(String, List)} and the other single calls, but not to batches.  Null, the default,
+     * disables caching.
+     */
+    public void setResponseCache(@Nullable ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    @Nullable
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /** How far below the tip a header must be before it is cached.  See {@link #DEFAULT_CACHE_REORG_DEPTH}. */
+    public void setCacheReorgDepth(int depth) {
+        checkState(depth >= 0);
+        cacheReorgDepth = depth;
+    }
+
+    /**
+     * Share a wire trace, for example with other clients.  By default, each client has its own, which is off.
+     * Takes effect on the next connection.
+     */
+    public void setWireTrace(WireTrace wireTrace) {
+        this.wireTrace = checkNotNull(wireTrace);
+    }
+
+    /** @return the wire trace, which can be enabled while connected */
+    public WireTrace getWireTrace() {
+        return wireTrace;
+    }
+
+    /**
+     * Resend at most this many subscriptions and pending calls per second after a reconnect.  Up to a second's
+     * worth go out at once.  See {@link #DEFAULT_REPLAY_RATE}.
+     */
+    public void setReplayRate(double perSecond) {
+        checkState(perSecond > 0);
+        replayLimiter = RateLimiter.create(perSecond);
+    }
+
+    /**
+     * Resend broadcasts that were sent to a server that disconnected before answering.  Off by default, in which
+     * case they fail with an {@link IOException}, since the transaction may have been broadcast.  Broadcasts that
+     * were never sent are always sent.
+     */
+    public void setReplayBroadcasts(boolean isReplayBroadcasts) {
+        this.isReplayBroadcasts = isReplayBroadcasts;
+    }
+
+    /** Report measurements to these metrics instead of ignoring them */
+    public void setMetrics(StratumMetrics metrics) {
+        this.metrics = checkNotNull(metrics);
+    }
+
+    public StratumMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Share the reply to a call with identical calls, with the same method and params, that are made while it is
+     * in flight.  Each caller gets its own copy of the reply.  Broadcasts are never shared.  On by default.
+     */
+    public void setShareCalls(boolean isShareCalls) {
+        this.isShareCalls = isShareCalls;
+    }
+
+    /** @return how many calls were answered by sharing an identical call in flight */
+    public long getSharedCallCount() {
+        return sharedCallCount.get();
+    }
+
+    /**
+     * Complete the future from the response cache or from an identical call in flight, if we can.
+     *
+     * @return the future to make the call with, or null if no call is needed
+     */
+    @Nullable
+    private SettableFuture<StratumMessage> share(String method, List<Object> params,
+                                                 SettableFuture<StratumMessage> future) {
+        ResponseCache cache = responseCache;
+        boolean isCached = cache != null && isCacheable(method);
+        boolean isShared = isShareCalls && !method.equals(BLOCKCHAIN_TRANSACTION_BROADCAST);
+        if (!isCached && !isShared)
+            return future;
+        StratumMessage request = new StratumMessage(currentId.getAndIncrement(), method, params, mapper);
+        String key = cacheKey(request);
+        if (isCached) {
+            StratumMessage reply = cachedReply(cache, request, key);
+            if (reply != null) {
+                complete(request, future, reply);
+                return null;
+            }
+        }
+        if (!isShared) {
+            cacheReply(cache, key, request, future);
+            return future;
+        }
+        while (true) {
+            SharedCall shared = sharedCalls.get(key);
+            if (shared != null) {
+                if (shared.join(future)) {
+                    sharedCallCount.incrementAndGet();
+                    return null;
+                }
+                // Completed meanwhile
+                sharedCalls.remove(key, shared);
+                continue;
+            }
+            shared = new SharedCall(key);
+            if (sharedCalls.putIfAbsent(key, shared) != null)
+                continue;
+            if (isCached)
+                cacheReply(cache, key, request, shared.future);
+            shared.join(future);
+            shared.future.addListener(shared, MoreExecutors.directExecutor());
+            return shared.future;
+        }
+    }
+
+    private String cacheKey(StratumMessage request) {
+        try {
+            return request.method + mapper.writeValueAsString(request.params);
+        } catch (JsonProcessingException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /** @return a reply to the request from the cache, or null */
+    @Nullable
+    private StratumMessage cachedReply(ResponseCache cache, StratumMessage request, String key) {
+        byte[] cached = cache.get(key);
+        if (cached == null || cached.length == 0)
+            return null;
+        StratumMessage reply = new StratumMessage(request.id, null);
+        if (request.method.equals(BLOCKCHAIN_GET_HEADER))
+            reply.setRawResult(cached, mapper);
+        else
+            reply.setHexResult(ByteBuffer.wrap(cached), null);
+        // Same as a reply from the server, which has the tree unless raw results were asked for
+        if (!isRawResults)
+            reply.readResult();
+        return reply;
+    }
+
+    private void cacheReply(final ResponseCache cache, final String key, final StratumMessage request,
+                            SettableFuture<StratumMessage> future) {
+        // Registered first, so that it runs before the caller can release a hex result
+        Futures.addCallback(future, new FutureCallback<StratumMessage>() {
+            @Override
+            public void onSuccess(StratumMessage reply) {
+                byte[] bytes = immutableResult(request, reply);
+                if (bytes != null)
+                    cache.put(key, bytes);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+    }
+
+    /** A call in flight, and the callers that share its reply */
+    private class SharedCall implements Runnable {
+        final String key;
+        final SettableFuture<StratumMessage> future = SettableFuture.create();
+        @GuardedBy("this")
+        final List<SettableFuture<StratumMessage>> callers = Lists.newArrayList();
+        @GuardedBy("this")
+        boolean isDone;
+
+        SharedCall(String key) {
+            this.key = key;
+        }
+
+        /** @return false if the call already completed, and can't be joined */
+        boolean join(SettableFuture<StratumMessage> caller) {
+            synchronized (this) {
+                if (isDone)
+                    return false;
+                callers.add(caller);
+            }
+            caller.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    left();
+                }
+            }, MoreExecutors.directExecutor());
+            return true;
+        }
+
+        // A caller gave up, such as on a deadline.  Forget the call once nobody is waiting for it.
+        private void left() {
+            synchronized (this) {
+                if (isDone)
+                    return;
+                for (SettableFuture<StratumMessage> caller : callers) {
+                    if (!caller.isDone())
+                        return;
+                }
+            }
+            future.cancel(false);
+        }
+
+        /** Called when the call completes */
+        @Override
+        public void run() {
+            List<SettableFuture<StratumMessage>> done;
+            synchronized (this) {
+                isDone = true;
+                done = callers;
+            }
+            sharedCalls.remove(key, this);
+            StratumMessage reply;
+            try {
+                reply = Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException | CancellationException e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                for (SettableFuture<StratumMessage> caller : done)
+                    caller.setException(cause);
+                return;
+            }
+            // Copy before completing anyone, since the first caller may release a pooled buffer right away
+            List<StratumMessage> replies = Lists.newArrayList(reply);
+            for (int i = 1 ; i < done.size() ; i++)
+                replies.add(reply.copy());
+            for (int i = 0 ; i < done.size() ; i++)
+                done.get(i).set(replies.get(i));
+        }
+    }
+
+    private static boolean isCacheable(String method) {
+        return method.equals(BLOCKCHAIN_TRANSACTION_GET) || method.equals(BLOCKCHAIN_GET_HEADER) ||
+                method.equals(BLOCKCHAIN_GET_CHUNK);
+    }
+
+    /** @return what to cache for a reply, or null if it may still change */
+    @Nullable
+    private byte[] immutableResult(StratumMessage request, StratumMessage reply) {
+        if (request.params.isEmpty())
+            return null;
+        JsonNode param = request.params.get(0);
+        long buried = tipHeight - cacheReorgDepth;
+        try {
+            switch (request.method) {
+                case BLOCKCHAIN_TRANSACTION_GET:
+                    byte[] tx = reply.readResultHex();
+                    if (tx.length == 0)
+                        return null;
+                    // Don't let a bad server poison the cache
+                    Sha256Hash hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(tx));
+                    return hash.toString().equals(param.asText()) ? tx : null;
+                case BLOCKCHAIN_GET_HEADER:
+                    if (tipHeight == 0 || param.asLong() > buried)
+                        return null;
+                    JsonNode header = reply.readResult();
+                    return header != null && header.isObject() ? mapper.writeValueAsBytes(header) : null;
+                case BLOCKCHAIN_GET_CHUNK:
+                    if (tipHeight == 0 || (param.asLong() + 1) * NetworkParameters.INTERVAL - 1 > buried)
+                        return null;
+                    byte[] chunk = reply.readResultHex();
+                    return chunk.length == RESULT_BUFFER_SIZE ? chunk : null;
+                default:
+                    return null;
+            }
+        } catch (JsonProcessingException | RuntimeException e) {
+            // Such as a result that is not valid hex
+            logger.warn("could not cache result of {}", request.method);
+            return null;
+        }
+    }
+
+    /**
+     * Make a call, waiting for room in the in-flight window if it is full.  See {@link #setMaxInFlight(int)}.
+     */
     public void call(String method, List<Object> params, boolean doQueue, SettableFuture<StratumMessage> future) {
+        call(method, params, doQueue, future, defaultPriority(method));
+    }
+
+    /** Like {@link #call(String, List, boolean, SettableFuture)}, with a priority */
+    public void call(String method, List<Object> params, boolean doQueue, SettableFuture<StratumMessage> future,
+                     Priority priority) {
+        boolean isWindowed = !isIoThread();
+        if (isWindowed) {
+            try {
+                window.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.setException(e);
+                return;
+            }
+        }
+        doCall(method, params, doQueue, future, isWindowed, priority);
+    }
+
+    /**
+     * Like {@link #call(String, List, boolean, SettableFuture, Priority)}, but don't wait for room in the window.
+     *
+     * @return false if the window was full, and the call was not made
+     */
+    boolean tryCall(String method, List<Object> params, boolean doQueue, SettableFuture<StratumMessage> future,
+                    Priority priority) {
+        boolean isWindowed = !isIoThread();
+        if (isWindowed && !window.tryAcquire())
+            return false;
+        doCall(method, params, doQueue, future, isWindowed, priority);
+        return true;
+    }
+
+    /** @param isWindowed whether the call holds a permit of the in-flight window */
+    private void doCall(String method, List<Object> params, boolean doQueue, SettableFuture<StratumMessage> future,
+                        boolean isWindowed, Priority priority) {
+        if (!isRunning()) {
+            future.setException(new RuntimeException("not running"));
+            if (isWindowed)
+                window.release();
+            return;
+        }
         StratumMessage message = new StratumMessage(currentId.getAndIncrement(), method, params, mapper);
+        // No lock needed.  The call is in the map before we check isConnected, and resendPending runs after
+        // isConnected is set, so a racing (re)connect will send the call at least once.
+        calls.put(message.id, new PendingCall(message, future, priority));
+        track(message, future, isWindowed);
+        if (isConnected && !doQueue) {
+            if (batchWindowMillis > 0 && isBatchSupported)
+                addToBatch(message);
+            else
+                writeMessage(message, priority);
+        }
+    }
+
+    /**
+     * Forget the call when it completes in any way, so a call that was cancelled or timed out is not resent,
+     * and its result is skipped when it arrives.  Also apply the default deadline, release the window permit
+     * and report the call to the metrics.
+     */
+    private void track(final StratumMessage message, final SettableFuture<StratumMessage> future,
+                       final boolean isWindowed) {
+        if (callTimeoutMillis > 0)
+            setDeadline(future, callTimeoutMillis);
+        final long start = System.currentTimeMillis();
+        metrics.onInFlight(calls.size());
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                calls.remove(message.id);
+                if (isWindowed)
+                    window.release();
+                metrics.onInFlight(calls.size());
+                if (future.isCancelled())
+                    return;
+                boolean isSuccess;
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                    isSuccess = true;
+                } catch (ExecutionException e) {
+                    isSuccess = false;
+                }
+                InetSocketAddress server = peerAddress;
+                if (server != null)
+                    metrics.onCall(server, message.method, System.currentTimeMillis() - start, isSuccess);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void setDeadline(final SettableFuture<StratumMessage> future, final long timeoutMillis) {
+        if (future.isDone())
+            return;
+        final ScheduledFuture<?> timer = getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.setException(
+                        new TimeoutException("no reply within " + timeoutMillis + " ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timer.cancel(false);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Fail calls that are not answered within this many milliseconds with a {@link TimeoutException}.
+     * Zero, the default, means no deadline.
+     */
+    public void setCallTimeout(long millis) {
+        checkState(millis >= 0);
+        callTimeoutMillis = millis;
+    }
+
+    /**
+     * Limit the number of calls in flight.  When the window is full, {@link #call} waits for replies before
+     * sending more.  Calls made from the client's own I/O thread, for example in a callback of another call,
+     * never wait and are not counted.  Must be set before the client is started.  Unlimited by default.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        checkState(state() == State.NEW);
+        checkState(maxInFlight > 0);
+        this.maxInFlight = maxInFlight;
+        window = new Semaphore(maxInFlight);
+    }
+
+    /** @return the fraction of the in-flight window in use, between 0 and 1 */
+    public double getWindowUtilisation() {
+        return (double) (maxInFlight - window.availablePermits()) / maxInFlight;
+    }
+
+    // Waiting for the window on the thread that delivers replies would never end
+    private boolean isIoThread() {
+        return isIoThread.get() || (eventLoop != null && eventLoop.inEventLoop());
+    }
+
+    /**
+     * Call a single-parameter method once for each of the params, sending all the calls in one
+     * JSON-RPC batch.
+     *
+     * @return a future for each param, in the same order
+     */
+    public List<ListenableFuture<StratumMessage>> callBatch(String method, List<?> params) {
+        return callBatch(method, params, defaultPriority(method));
+    }
+
+    /**
+     * Like {@link #callBatch(String, List)}, with a priority.  Large batches of background work should use
+     * {@link Priority#BULK}, so that they don't hold up other calls.
+     */
+    public List<ListenableFuture<StratumMessage>> callBatch(String method, List<?> params, Priority priority) {
+        List<ListenableFuture<StratumMessage>> futures = Lists.newArrayList();
+        List<StratumMessage> messages = Lists.newArrayList();
+        boolean isWindowed = !isIoThread();
+        for (Object param : params) {
+            SettableFuture<StratumMessage> future = SettableFuture.create();
+            futures.add(future);
+            if (isWindowed && !window.tryAcquire()) {
+                // Send what we have, so that the replies make room
+                if (isConnected && !isQueue)
+                    writeBatch(messages);
+                messages.clear();
+                try {
+                    window.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    future.setException(e);
+                    continue;
+                }
+            }
+            if (!isRunning()) {
+                future.setException(new RuntimeException("not running"));
+                if (isWindowed)
+                    window.release();
+                continue;
+            }
+            StratumMessage message =
+                    new StratumMessage(currentId.getAndIncrement(), method, Lists.<Object>newArrayList(param), mapper);
+            calls.put(message.id, new PendingCall(message, future, priority));
+            track(message, future, isWindowed);
+            messages.add(message);
+        }
+        if (isConnected && !isQueue)
+            writeBatch(messages);
+        return futures;
+    }
+
+    /**
+     * Coalesce calls issued within this many milliseconds of each other into a single JSON-RPC batch.
+     * Zero, the default, sends each call immediately.
+     */
+    public void setBatchWindow(long millis) {
+        checkState(millis >= 0);
+        batchWindowMillis = millis;
+    }
+
+    private final Runnable batchFlusher = new Runnable() {
+        @Override
+        public void run() {
+            flushBatch();
+        }
+    };
+
+    private void addToBatch(StratumMessage message) {
+        pendingBatch.add(message);
+        int size = pendingBatchSize.incrementAndGet();
+        if (size >= MAX_BATCH_SIZE)
+            flushBatch();
+        else if (size == 1)
+            getScheduler().schedule(batchFlusher, batchWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushBatch() {
+        List<StratumMessage> batch = Lists.newArrayList();
+        StratumMessage message;
+        while (batch.size() < MAX_BATCH_SIZE && (message = pendingBatch.poll()) != null)
+            batch.add(message);
+        if (batch.isEmpty())
+            return;
+        // Calls added while we were draining may have missed their chance to schedule a flush
+        if (pendingBatchSize.addAndGet(-batch.size()) > 0)
+            getScheduler().schedule(batchFlusher, batchWindowMillis, TimeUnit.MILLISECONDS);
+        if (isConnected)
+            writeBatch(batch);
+    }
+
+    // Batched calls are still in the calls map, and will be resent on reconnect
+    private void clearBatch() {
+        while (pendingBatch.poll() != null)
+            pendingBatchSize.decrementAndGet();
+    }
+
+    /**
+     * Servers that don't understand batches reply with a single error without an id.  There may be more than
+     * one of these if several batches were in flight.
+     */
+    private void handleBatchRejected(StratumMessage message) {
+        if (isBatchSupported)
+            logger.warn("server rejected batch, falling back to single calls: {}", message.error);
+        isBatchSupported = false;
         lock.lock();
         try {
-            if (!isRunning())
-                future.setException(new RuntimeException("not running"));
-            calls.put(message.id, new PendingCall(message, future));
-            if (isConnected && !doQueue) {
-                writeMessage(message);
+            clearBatch();
+            if (!isConnected)
+                return;
+            for (PendingCall call : calls.values()) {
+                if (call.isBatched) {
+                    call.isBatched = false;
+                    writeMessage(call.message, call.priority);
+                }
             }
         } finally {
             lock.unlock();
@@ -518,6 +1599,45 @@ public class StratumClient extends AbstractExecutionThreadService {
         return subscribe(BLOCKCHAIN_ADDRESS_SUBSCRIBE, address.toString(), id);
     }
 
+    /**
+     * Subscribe to an address, with a callback for its messages instead of the address queue.
+     *
+     * <p>The callback gets the subscription result and then each status change, in order.  Callbacks of
+     * different addresses run in parallel on the task executor of the {@link ThreadModel}, so a busy address
+     * doesn't hold up the others.
+     *
+     * @return a subscription, with a future
+     */
+    public StratumSubscription subscribe(Address address, SubscriptionDispatcher.Listener listener) {
+        String key = address.toString();
+        subscriptions.addListener(BLOCKCHAIN_ADDRESS_SUBSCRIBE, key, listener, getAddressCallbackExecutor().get(key));
+        return subscribe(address);
+    }
+
+    /** Stop calling back for an address.  Later messages for it go to the address queue. */
+    public void removeAddressListener(Address address) {
+        subscriptions.removeListener(BLOCKCHAIN_ADDRESS_SUBSCRIBE, address.toString());
+    }
+
+    /**
+     * Wait for address callbacks to finish, such as after the client was stopped
+     *
+     * @return false if we timed out
+     */
+    public boolean awaitAddressCallbacks(long timeout, TimeUnit unit) throws InterruptedException {
+        StripedExecutor executor;
+        synchronized (this) {
+            executor = addressCallbackExecutor;
+        }
+        return executor == null || executor.awaitIdle(timeout, unit);
+    }
+
+    private synchronized StripedExecutor getAddressCallbackExecutor() {
+        if (addressCallbackExecutor == null)
+            addressCallbackExecutor = new StripedExecutor(threadModel.getTaskExecutor(), ADDRESS_CALLBACK_STRIPES);
+        return addressCallbackExecutor;
+    }
+
     /**
      * Subscription call result will be passed into the result queue.
      *
@@ -537,12 +1657,12 @@ public class StratumClient extends AbstractExecutionThreadService {
 
     /** Stop async without causing any network access on calling thread */
     public void stopInBackground() {
-        new Thread(new Runnable() {
+        threadModel.getTaskExecutor().execute(new Runnable() {
             @Override
             public void run() {
                 stopAsync();
             }
-        }).start();
+        });
     }
 
     protected StratumSubscription subscribe(String method, String param, long id) {
@@ -552,7 +1672,7 @@ public class StratumClient extends AbstractExecutionThreadService {
             StratumMessage message = makeMessage(method, param, id);
             calls.put(id, new PendingSubscription(message, future));
             if (isConnected) {
-                writeMessage(message);
+                writeMessage(message, Priority.INTERACTIVE);
             }
             return new StratumSubscription(future);
         } finally {
@@ -561,27 +1681,124 @@ public class StratumClient extends AbstractExecutionThreadService {
     }
 
     private BlockingQueue<StratumMessage> getSubscriptionQueue(String method) {
-        if (!subscriptions.containsKey(method)) {
-            subscriptions.putIfAbsent(method, makeSubscriptionQueue());
-        }
-        return subscriptions.get(method);
+        return subscriptions.getQueue(method);
+    }
+
+    /**
+     * Set how messages of a subscription are buffered when its consumers fall behind.  Headers keep everything by
+     * default, and addresses keep the latest message for each address.  Must be set before the subscription's
+     * queue is asked for or listeners are added.
+     *
+     * @param capacity the most messages kept with {@link SubscriptionDispatcher.OverflowPolicy#DROP_OLDEST}
+     */
+    public void setOverflowPolicy(String method, SubscriptionDispatcher.OverflowPolicy policy, int capacity) {
+        subscriptions.setOverflowPolicy(method, policy, capacity);
     }
 
-    private ArrayBlockingQueue<StratumMessage> makeSubscriptionQueue() {
-        return Queues.newArrayBlockingQueue(SUBSCRIPTION_QUEUE_CAPACITY);
+    /**
+     * Receive the messages of a subscription method on an executor, as an alternative to its queue.
+     * Messages are delivered one at a time, in order.
+     */
+    public void addSubscriptionListener(String method, SubscriptionDispatcher.Listener listener, Executor executor) {
+        subscriptions.addListener(method, listener, executor);
+    }
+
+    public void removeSubscriptionListener(String method, SubscriptionDispatcher.Listener listener) {
+        subscriptions.removeListener(method, listener);
+    }
+
+    private void writeMessage(StratumMessage message, Priority priority) {
+        ByteBuffer frame = encode(message);
+        if (wireTrace.isTraced(message.method))
+            wireTrace.sent(frame);
+        if (send(frame, priority) && message.method.equals(BLOCKCHAIN_TRANSACTION_BROADCAST)) {
+            PendingCall call = calls.get(message.id);
+            if (call != null)
+                call.isSent = true;
+        }
     }
 
-    private void writeMessage(StratumMessage message) {
+    /** Serialize once into a pooled buffer, including the line terminator */
+    private ByteBuffer encode(Object value) {
+        BufferPool.BufferOutputStream out = bufferPool.new BufferOutputStream();
         try {
-            logger.info("> {}", mapper.writeValueAsString(message));
-            mapper.writeValue(outputStream, message);
-            outputStream.write('\n');
+            mapper.writeValue(out, value);
         } catch (IOException e) {
-            logger.error("failed to write, will retry after reconnect");
-            // This will be retried by the main loop when we reconnect
+            // Our messages are always serializable, and the stream doesn't throw
+            throw Throwables.propagate(e);
+        }
+        out.write('\n');
+        return out.toBuffer();
+    }
+
+    /**
+     * Hand a frame to the writer of the current connection.  Never blocks.  If we are between connections,
+     * the frame is dropped, and the call will be resent after reconnect.
+     *
+     * @return false if the frame was dropped
+     */
+    private boolean send(ByteBuffer frame, Priority priority) {
+        int size = frame.remaining();
+        if (eventLoop != null) {
+            NioConnection current = connection;
+            if (current == null)
+                return false;
+            try {
+                current.write(frame, priority);
+            } catch (RejectedExecutionException e) {
+                // The event loop was shut down under us, so no call will be answered
+                logger.error("event loop is shut down, failing calls");
+                failPending(e);
+                return false;
+            }
+        } else {
+            StratumWriter current = writer;
+            if (current == null)
+                return false;
+            current.write(frame, priority);
+        }
+        metrics.onFrameSent(size);
+        return true;
+    }
+
+    private void writeBatch(List<StratumMessage> messages) {
+        for (List<StratumMessage> batch : Lists.partition(messages, MAX_BATCH_SIZE)) {
+            // A rejection may arrive while we are still writing
+            if (batch.size() == 1 || !isBatchSupported) {
+                for (StratumMessage message : batch)
+                    writeMessage(message, priorityOf(message));
+                continue;
+            }
+            // A batch goes out at the highest priority of its calls
+            Priority priority = Priority.BULK;
+            for (StratumMessage message : batch) {
+                PendingCall call = calls.get(message.id);
+                if (call != null) {
+                    call.isBatched = true;
+                    call.isSent = true;
+                    if (call.priority.compareTo(priority) < 0)
+                        priority = call.priority;
+                }
+            }
+            ByteBuffer frame = encode(batch);
+            if (wireTrace.isEnabled()) {
+                // Log a batch once, if any of its messages is traced
+                for (StratumMessage message : batch) {
+                    if (wireTrace.isTraced(message.method)) {
+                        wireTrace.sent(frame);
+                        break;
+                    }
+                }
+            }
+            send(frame, priority);
         }
     }
 
+    private Priority priorityOf(StratumMessage message) {
+        PendingCall call = calls.get(message.id);
+        return call != null ? call.priority : defaultPriority(message.method);
+    }
+
     private StratumMessage makeMessage(String method, String param, long id) {
         ArrayList<Object> params = (param != null) ? Lists.<Object>newArrayList(param) : Lists.newArrayList();
         return new StratumMessage(id, method, params, mapper);
@@ -593,31 +1810,37 @@ public class StratumClient extends AbstractExecutionThreadService {
             logger.warn("reply for unknown id {}", message.id);
             return;
         }
-        call.future.set(message);
+        complete(call.message, call.future, message);
+    }
+
+    private void complete(StratumMessage request, SettableFuture<StratumMessage> future, StratumMessage message) {
+        future.set(message);
         // Pass subscription result through queue also
-        if (call.message.method.endsWith(".subscribe")) {
+        if (request.method.endsWith(".subscribe")) {
             StratumMessage message1 =
-                    new StratumMessage(null, call.message.method, call.message.params, message.result, mapper);
+                    new StratumMessage(null, request.method, request.params, message.readResult(), mapper);
             handleMessage(message1.method, message1);
         }
-        if (call.message.method.equals(BLOCKCHAIN_GET_HEADER)) {
+        if (request.method.equals(BLOCKCHAIN_GET_HEADER)) {
             StratumMessage message1 =
-                    new StratumMessage(null, call.message.method, call.message.params, message.result, mapper);
+                    new StratumMessage(null, request.method, request.params, message.readResult(), mapper);
             handleMessage(BLOCKCHAIN_HEADERS_SUBSCRIBE, message1);
         }
     }
 
     protected void handleMessage(String subscriptionMethod, StratumMessage message) {
-        if (!subscriptions.containsKey(subscriptionMethod)) {
-            logger.warn("message for unknown subscription {}", message.method);
-            return;
-        }
-        try {
-            BlockingQueue<StratumMessage> queue = subscriptions.get(subscriptionMethod);
-            queue.put(message);
-        } catch (InterruptedException e) {
-            logger.warn("interrupted while handling message {}", message.method);
-        }
+        if (BLOCKCHAIN_HEADERS_SUBSCRIBE.equals(message.method))
+            updateTip(message);
+        // Never blocks, so a slow consumer can't stall the reader
+        int backlog = subscriptions.dispatch(subscriptionMethod, message);
+        metrics.onSubscriptionBacklog(subscriptionMethod, backlog);
+    }
+
+    private void updateTip(StratumMessage message) {
+        JsonNode header = message.result != null ? message.result :
+                message.params != null && !message.params.isEmpty() ? message.params.get(0) : null;
+        if (header != null && header.has("block_height"))
+            tipHeight = header.get("block_height").asLong();
     }
 
     private void handleError(StratumMessage message) {
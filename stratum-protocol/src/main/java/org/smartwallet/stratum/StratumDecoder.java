@@ -0,0 +1,340 @@
+package org.smartwallet.stratum;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits received bytes into newline delimited frames and decodes them with the streaming parser.
+ *
+ * <p>Frames that arrive in one piece are parsed straight out of the read buffer.  Only frames that span reads
+ * are copied.  The id of a reply is looked at before its result, so that results nobody is waiting for
+ * are skipped without being materialized, and results can be kept as raw bytes to be bound later.
+ *
+ * <p>One decoder per connection.  Not thread safe.
+ */
+class StratumDecoder {
+    protected static Logger logger = LoggerFactory.getLogger("StratumDecoder");
+    public static final int DEFAULT_MAX_FRAME_SIZE = 8 * 1024 * 1024;
+    private static final int INITIAL_PARTIAL_SIZE = 4096;
+    // Don't hold on to a large buffer after an occasional large frame
+    private static final int MAX_RETAINED_PARTIAL_SIZE = 64 * 1024;
+
+    /** How to decode the result of a reply */
+    enum ResultMode {
+        /** Nobody is waiting for the result any more */
+        SKIP,
+        /** Build a tree */
+        TREE,
+        /** Keep the raw JSON bytes, see {@link StratumMessage#isRawResult()} */
+        RAW,
+        /** Decode a hex string into a pooled buffer, see {@link StratumMessage#readResultBuffer()} */
+        HEX
+    }
+
+    interface Handler {
+        ResultMode resultMode(long id);
+
+        /** Called for each received line, before its messages, with its length including the terminator */
+        void onFrame(int length);
+
+        /** @return the method of a call we are waiting for, or null.  Only asked while tracing. */
+        @Nullable
+        String callMethod(long id);
+
+        void onMessage(StratumMessage message);
+    }
+
+    private final ObjectMapper mapper;
+    private final BufferPool resultPool;
+    private final int maxFrameSize;
+    private final Handler handler;
+    private final WireTrace wireTrace;
+    private byte[] partial;
+    private int partialLength;
+    // The frame being decoded, its end, and the difference between an index into it and a parser byte offset
+    private byte[] frame;
+    private int frameEnd;
+    private long frameBase;
+
+    StratumDecoder(ObjectMapper mapper, BufferPool resultPool, int maxFrameSize, Handler handler,
+                   WireTrace wireTrace) {
+        this.mapper = mapper;
+        this.resultPool = resultPool;
+        this.maxFrameSize = maxFrameSize;
+        this.handler = handler;
+        this.wireTrace = wireTrace;
+        this.partial = new byte[INITIAL_PARTIAL_SIZE];
+    }
+
+    /**
+     * Decode received bytes, calling the handler for each complete message.
+     *
+     * @throws IOException if a frame is malformed or exceeds the maximum frame size
+     */
+    void decode(byte[] data, int offset, int length) throws IOException {
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset ; i < end ; i++) {
+            if (data[i] != '\n')
+                continue;
+            if (partialLength > 0) {
+                append(data, start, i - start);
+                decodeFrame(partial, 0, partialLength);
+                partialLength = 0;
+                if (partial.length > MAX_RETAINED_PARTIAL_SIZE)
+                    partial = new byte[INITIAL_PARTIAL_SIZE];
+            } else {
+                checkFrameSize(i - start);
+                decodeFrame(data, start, i - start);
+            }
+            start = i + 1;
+        }
+        if (start < end)
+            append(data, start, end - start);
+    }
+
+    private void append(byte[] data, int offset, int length) throws IOException {
+        checkFrameSize(partialLength + length);
+        if (partialLength + length > partial.length) {
+            byte[] larger = new byte[Math.max(partial.length * 2, partialLength + length)];
+            System.arraycopy(partial, 0, larger, 0, partialLength);
+            partial = larger;
+        }
+        System.arraycopy(data, offset, partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private void checkFrameSize(int size) throws IOException {
+        if (size > maxFrameSize)
+            throw new IOException("frame exceeds maximum size of " + maxFrameSize + " bytes");
+    }
+
+    private void decodeFrame(byte[] data, int offset, int length) throws IOException {
+        handler.onFrame(length + 1);
+        // Whether the frame still has to be considered for tracing
+        boolean isTracing = wireTrace.isEnabled();
+        JsonParser parser = mapper.getFactory().createParser(data, offset, length);
+        try {
+            JsonToken token = parser.nextToken();
+            if (token == null)
+                return; // Blank line
+            int start = offset;
+            while (isWhitespace(data[start]))
+                start++;
+            frame = data;
+            frameEnd = offset + length;
+            frameBase = start - parser.getTokenLocation().getByteOffset();
+            if (token == JsonToken.START_ARRAY) {
+                // JSON-RPC batch response
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    StratumMessage message = decodeMessage(parser);
+                    // Log a batch once, if any of its messages is traced
+                    if (isTracing && trace(message, data, offset, length))
+                        isTracing = false;
+                    handler.onMessage(message);
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                StratumMessage message = decodeMessage(parser);
+                if (isTracing)
+                    trace(message, data, offset, length);
+                handler.onMessage(message);
+            } else {
+                throw new IOException("unexpected token " + token);
+            }
+        } finally {
+            frame = null;
+            parser.close();
+        }
+    }
+
+    /** Must be called before the handler sees the message, while the call is still pending */
+    private boolean trace(StratumMessage message, byte[] data, int offset, int length) {
+        String method = message.method;
+        if (method == null && message.id != null)
+            method = handler.callMethod(message.id);
+        if (!wireTrace.isTraced(method))
+            return false;
+        wireTrace.received(data, offset, length);
+        return true;
+    }
+
+    /** Parser must be positioned at the start of the object */
+    private StratumMessage decodeMessage(JsonParser parser) throws IOException {
+        StratumMessage message = new StratumMessage();
+        JsonToken next = parser.nextToken();
+        while (next == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            // The value may report the location of its name, and older parsers locate the name at the comma
+            // before it, so the value is found by scanning from there
+            int nameStart = index(parser);
+            JsonToken token = parser.nextToken();
+            switch (name) {
+                case "id":
+                    message.id = readId(parser, token);
+                    break;
+                case "method":
+                    message.method = parser.getText();
+                    break;
+                case "params":
+                    message.params = readParams(parser, token);
+                    break;
+                case "result":
+                    ResultMode mode = message.id != null && token != JsonToken.VALUE_NULL ?
+                            handler.resultMode(message.id) : ResultMode.TREE;
+                    if (mode == ResultMode.SKIP) {
+                        parser.skipChildren();
+                        message.result = NullNode.getInstance();
+                    } else if (mode == ResultMode.RAW || mode == ResultMode.HEX) {
+                        // The value is cut out of the frame, so strings are skipped by the parser rather than buffered
+                        parser.skipChildren();
+                        int start = valueStart(nameStart);
+                        int end = valueEnd(start);
+                        if (mode != ResultMode.HEX || token != JsonToken.VALUE_STRING || !readHex(message, start, end))
+                            message.setRawResult(Arrays.copyOfRange(frame, start, end), mapper);
+                    } else {
+                        message.result = readTree(parser);
+                    }
+                    break;
+                case "error":
+                    if (token == JsonToken.VALUE_STRING)
+                        message.error = parser.getText();
+                    else if (token != JsonToken.VALUE_NULL)
+                        message.error = readTree(parser).toString();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+            next = parser.nextToken();
+        }
+        return message;
+    }
+
+    /**
+     * Decode the quoted hex string at [start, end) of the current frame straight into a pooled buffer.
+     * Strings with escapes or non hex characters are left to the raw path.
+     */
+    private boolean readHex(StratumMessage message, int start, int end) {
+        int length = end - start - 2;
+        ByteBuffer buffer = resultPool.acquire(length / 2);
+        try {
+            Hex.decode(frame, start + 1, length, buffer);
+        } catch (IllegalArgumentException e) {
+            resultPool.release(buffer);
+            return false;
+        }
+        buffer.flip();
+        message.setHexResult(buffer, resultPool);
+        return true;
+    }
+
+    /** @return the index into the current frame of the start of the current token */
+    private int index(JsonParser parser) {
+        return (int) (frameBase + parser.getTokenLocation().getByteOffset());
+    }
+
+    /** @return the index of the value after the field name, which is at nameStart or after a comma there */
+    private int valueStart(int nameStart) throws IOException {
+        int i = nameStart;
+        while (i < frameEnd && (frame[i] == ',' || isWhitespace(frame[i])))
+            i++;
+        i = skipString(i);
+        while (i < frameEnd && isWhitespace(frame[i]))
+            i++;
+        if (i >= frameEnd || frame[i] != ':')
+            throw new IOException("expected ':' after field name");
+        i++;
+        while (i < frameEnd && isWhitespace(frame[i]))
+            i++;
+        return i;
+    }
+
+    /** @return the index just after the value starting at start */
+    private int valueEnd(int start) throws IOException {
+        if (start >= frameEnd)
+            throw new IOException("missing value");
+        byte first = frame[start];
+        if (first == '"')
+            return skipString(start);
+        if (first != '[' && first != '{') {
+            int i = start;
+            while (i < frameEnd && frame[i] != ',' && frame[i] != '}' && frame[i] != ']' && !isWhitespace(frame[i]))
+                i++;
+            return i;
+        }
+        int depth = 0;
+        int i = start;
+        while (i < frameEnd) {
+            byte b = frame[i];
+            if (b == '"') {
+                i = skipString(i);
+                continue;
+            }
+            if (b == '[' || b == '{')
+                depth++;
+            else if ((b == ']' || b == '}') && --depth == 0)
+                return i + 1;
+            i++;
+        }
+        throw new IOException("unterminated value");
+    }
+
+    /** @return the index just after the string whose opening quote is at start */
+    private int skipString(int start) throws IOException {
+        if (start >= frameEnd || frame[start] != '"')
+            throw new IOException("expected string");
+        for (int i = start + 1 ; i < frameEnd ; i++) {
+            if (frame[i] == '\\')
+                i++;
+            else if (frame[i] == '"')
+                return i + 1;
+        }
+        throw new IOException("unterminated string");
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static Long readId(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_INT)
+            return parser.getLongValue();
+        if (token == JsonToken.VALUE_STRING) {
+            try {
+                return Long.parseLong(parser.getText());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static List<JsonNode> readParams(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        List<JsonNode> params = Lists.newArrayList();
+        while (parser.nextToken() != JsonToken.END_ARRAY)
+            params.add(readTree(parser));
+        return params;
+    }
+
+    private static JsonNode readTree(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL)
+            return NullNode.getInstance();
+        return parser.readValueAsTree();
+    }
+}
@@ -0,0 +1,173 @@
+package org.smartwallet.stratum;
+
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A single selector thread that drives the sockets of many {@link StratumClient}s.
+ *
+ * <p>Clients constructed with an event loop do not own any threads.  Socket I/O and TLS run on the
+ * selector thread, and pings and reconnects run on a single shared timer thread.
+ *
+ * <p>The loop must be started before any client that uses it.
+ */
+public class StratumEventLoop extends AbstractExecutionThreadService {
+    protected static Logger logger = LoggerFactory.getLogger("StratumEventLoop");
+    static ThreadFactory threadFactory =
+            new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                        @Override
+                        public void uncaughtException(Thread t, Throwable e) {
+                            logger.error("uncaught exception", e);
+                        }
+                    }).build();
+    static ThreadFactory timerThreadFactory =
+            new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("stratum-timer-%d")
+                    .setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                        @Override
+                        public void uncaughtException(Thread t, Throwable e) {
+                            logger.error("uncaught exception", e);
+                        }
+                    }).build();
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final ScheduledExecutorService scheduler;
+    private volatile Thread thread;
+    // Set once shutdown has started, after which tasks are rejected
+    private volatile boolean isClosed;
+
+    public StratumEventLoop() throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        scheduler = Executors.newSingleThreadScheduledExecutor(timerThreadFactory);
+    }
+
+    /**
+     * Run a task on the selector thread.
+     *
+     * @throws RejectedExecutionException if the loop was shut down, since the task would never run
+     */
+    public void execute(Runnable task) {
+        if (isClosed)
+            throw new RejectedExecutionException("event loop is shut down");
+        tasks.add(task);
+        // Shutdown may have drained the queue for the last time since we checked.  If so, take the task back.
+        if (isClosed && tasks.remove(task))
+            throw new RejectedExecutionException("event loop is shut down");
+        selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Timer shared by all clients on this loop.  Tasks must not block for long. */
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /** Must be called on the selector thread */
+    SelectionKey register(SocketChannel channel, int ops, NioConnection connection) throws IOException {
+        return channel.register(selector, ops, connection);
+    }
+
+    @Override
+    protected void run() {
+        thread = Thread.currentThread();
+        while (isRunning()) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                logger.error("select failed", e);
+                continue;
+            }
+            runTasks();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    connection.handle(key);
+                } catch (CancelledKeyException e) {
+                    // Closed by an earlier handler in this round
+                } catch (Throwable t) {
+                    logger.error("connection handler", t);
+                    connection.closeNow(t);
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.error("event loop task", t);
+            }
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        logger.info("trigger shutdown");
+        selector.wakeup();
+    }
+
+    @Override
+    protected void shutDown() throws IOException {
+        logger.info("shutdown");
+        scheduler.shutdownNow();
+        isClosed = true;
+        try {
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    ((NioConnection) key.attachment()).closeNow(null);
+                } catch (RuntimeException e) {
+                    logger.error("closing connection", e);
+                }
+            }
+        } finally {
+            selector.close();
+        }
+    }
+
+    @Override
+    protected Executor executor() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Thread thread = threadFactory.newThread(command);
+                try {
+                    thread.setName(serviceName());
+                } catch (SecurityException e) {
+                    // OK if we can't set the name in this environment.
+                }
+                thread.start();
+            }
+        };
+    }
+}
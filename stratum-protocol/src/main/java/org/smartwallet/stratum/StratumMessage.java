@@ -1,10 +1,16 @@
 package org.smartwallet.stratum;
 
 import com.fasterxml.jackson.annotation.*;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import org.bitcoinj.core.Utils;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -21,15 +27,32 @@ public class StratumMessage {
     /** Parameters - for calls */
     public List<JsonNode> params;
 
-    /** Result - for result */
+    /** Result - for result.  Null in raw mode until {@link #readResult()} is called. */
     @JsonProperty("result")
     public JsonNode result;
 
+    /** The unparsed JSON of the result, in raw mode */
+    @JsonIgnore
+    private byte[] rawResult;
+
+    @JsonIgnore
+    private ObjectMapper mapper;
+
+    /** The decoded bytes of a hex string result, in a buffer borrowed from the pool */
+    @JsonIgnore
+    private ByteBuffer hexResult;
+
+    @JsonIgnore
+    private BufferPool pool;
+
     @JsonProperty("error")
     public String error;
 
     public static final StratumMessage SENTINEL = new StratumMessage();
 
+    // For binding results of messages that were not received in raw mode
+    private static final ObjectMapper DEFAULT_MAPPER = new ObjectMapper();
+
     public StratumMessage() {
     }
 
@@ -64,9 +87,113 @@ public class StratumMessage {
         this.result = result;
     }
 
+    /** Keep the result as unparsed JSON, to be decoded on demand */
+    @JsonIgnore
+    void setRawResult(byte[] rawResult, ObjectMapper mapper) {
+        this.rawResult = rawResult;
+        this.mapper = mapper;
+    }
+
+    /** Keep a hex string result as the decoded bytes */
+    @JsonIgnore
+    void setHexResult(ByteBuffer hexResult, BufferPool pool) {
+        this.hexResult = hexResult;
+        this.pool = pool;
+    }
+
+    @JsonIgnore
+    public boolean isRawResult() {
+        return rawResult != null || hexResult != null;
+    }
+
+    /** @return the result as a tree, parsing it if we are in raw mode */
+    public JsonNode readResult() {
+        if (result == null && hexResult != null)
+            result = new TextNode(Utils.HEX.encode(readResultHex()));
+        if (result == null && rawResult != null) {
+            try {
+                result = mapper.readTree(rawResult);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        return result;
+    }
+
+    /** Bind the result to a type.  In raw mode, this does not build an intermediate tree. */
+    public <T> T readResult(Class<T> type) throws IOException {
+        if (result == null && rawResult != null)
+            return mapper.readValue(rawResult, type);
+        return DEFAULT_MAPPER.treeToValue(result, type);
+    }
+
+    /** Bind the result to a generic type.  In raw mode, this does not build an intermediate tree. */
+    public <T> T readResult(TypeReference<T> type) throws IOException {
+        if (result == null && rawResult != null)
+            return mapper.readValue(rawResult, type);
+        return DEFAULT_MAPPER.readValue(DEFAULT_MAPPER.treeAsTokens(result), type);
+    }
+
+    /**
+     * Decode a hex string result.  In raw mode, this decodes straight from the received bytes.
+     *
+     * @return the decoded bytes, or an empty array if the result is not a string
+     */
+    public byte[] readResultHex() {
+        if (hexResult != null) {
+            byte[] bytes = new byte[hexResult.remaining()];
+            hexResult.duplicate().get(bytes);
+            return bytes;
+        }
+        if (result == null && rawResult != null)
+            return Hex.decodeQuoted(rawResult, 0, rawResult.length);
+        if (result == null || !result.isTextual())
+            return new byte[0];
+        return Utils.HEX.decode(result.asText());
+    }
+
+    /**
+     * Decode a hex string result, without copying if it was already decoded by the receiver.
+     * Call {@link #release()} when done with the buffer.
+     *
+     * @return the decoded bytes, empty if the result is not a string
+     */
+    public ByteBuffer readResultBuffer() {
+        if (hexResult != null)
+            return hexResult.duplicate();
+        return ByteBuffer.wrap(readResultHex());
+    }
+
+    /**
+     * Return the buffer of a decoded hex result to the pool.  The result, and buffers returned by
+     * {@link #readResultBuffer()}, must not be used afterwards.
+     */
+    public void release() {
+        if (hexResult != null) {
+            if (pool != null)
+                pool.release(hexResult);
+            hexResult = null;
+        }
+    }
+
+    /** @return a copy, whose result can be read and released independently of this one */
+    StratumMessage copy() {
+        StratumMessage copy = new StratumMessage();
+        copy.id = id;
+        copy.method = method;
+        copy.params = params;
+        copy.result = result;
+        copy.error = error;
+        copy.rawResult = rawResult;
+        copy.mapper = mapper;
+        if (hexResult != null)
+            copy.hexResult = ByteBuffer.wrap(readResultHex());
+        return copy;
+    }
+
     @JsonIgnore
     public boolean isResult() {
-        return id != null && result != null;
+        return id != null && (result != null || rawResult != null || hexResult != null);
     }
 
     @JsonIgnore
@@ -0,0 +1,61 @@
+package org.smartwallet.stratum;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+
+/**
+ * Receives measurements from a {@link StratumClient}, for export to a monitoring system.
+ *
+ * <p>All methods do nothing, so that an exporter only overrides what it needs.  They are called on I/O threads,
+ * many of them for every message, so they must be quick and thread safe.  Aggregation, such as building latency
+ * histograms per method and server, is left to the exporter.
+ *
+ * @see StratumClient#setMetrics(StratumMetrics)
+ */
+public class StratumMetrics {
+    /** The default, which ignores everything */
+    public static final StratumMetrics NOOP = new StratumMetrics();
+
+    /**
+     * A call completed with a reply, an error or a timeout.  Cancelled calls are not reported.
+     *
+     * @param server the server we were connected to when the call completed
+     */
+    public void onCall(InetSocketAddress server, String method, long latencyMillis, boolean isSuccess) {
+    }
+
+    /** The number of calls waiting for a reply changed */
+    public void onInFlight(int count) {
+    }
+
+    /** A frame was handed to the connection.  The size includes the line terminator. */
+    public void onFrameSent(int bytes) {
+    }
+
+    /** A frame was received.  The size includes the line terminator. */
+    public void onFrameReceived(int bytes) {
+    }
+
+    /** A subscription message was dispatched, and the slowest consumer now has this many waiting */
+    public void onSubscriptionBacklog(String method, int depth) {
+    }
+
+    /** Connected, including the TLS handshake */
+    public void onConnected(InetSocketAddress server, long connectMillis) {
+    }
+
+    /** A connection attempt failed.  The cause is null if the server closed the connection while we connected. */
+    public void onConnectFailed(InetSocketAddress server, @Nullable Throwable cause) {
+    }
+
+    /**
+     * A connection was lost, and we will reconnect.  The cause is null if it was closed, by the server or by us,
+     * such as after a failed ping.
+     */
+    public void onDisconnected(InetSocketAddress server, @Nullable Throwable cause) {
+    }
+
+    /** A ping was answered */
+    public void onPing(InetSocketAddress server, long rttMillis) {
+    }
+}
@@ -0,0 +1,84 @@
+package org.smartwallet.stratum;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Drains encoded frames to a blocking socket on a dedicated thread.
+ *
+ * <p>Everything queued while the previous write was in progress goes out with a single flush, higher priorities
+ * first, see {@link FrameLanes}.  Callers of {@link #write} never block on the socket.
+ */
+class StratumWriter implements Runnable {
+    protected static Logger logger = LoggerFactory.getLogger("StratumWriter");
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final BufferPool pool;
+    // Closed on write failure, so the reader notices and we reconnect
+    private final Closeable socket;
+    private final FrameLanes lanes;
+    // One permit for each queued frame, and one more to stop
+    private final Semaphore available;
+    private volatile boolean isStopped;
+
+    StratumWriter(OutputStream out, BufferPool pool, Closeable socket) {
+        this.out = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+        this.pool = pool;
+        this.socket = socket;
+        this.lanes = new FrameLanes();
+        this.available = new Semaphore(0);
+    }
+
+    /** Queue a flipped frame.  The buffer is returned to the pool once written. */
+    void write(ByteBuffer frame, StratumClient.Priority priority) {
+        lanes.add(frame, priority);
+        available.release();
+    }
+
+    /** Stop after writing out what was already queued */
+    void stop() {
+        isStopped = true;
+        available.release();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                available.acquire();
+                int count = 1 + available.drainPermits();
+                for (int i = 0 ; i < count ; i++) {
+                    // Frames queued before the stop permit are all taken by the time it comes up
+                    ByteBuffer frame = lanes.poll();
+                    if (frame == null) {
+                        if (isStopped) {
+                            out.flush();
+                            return;
+                        }
+                        continue;
+                    }
+                    out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    pool.release(frame);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            logger.error("failed to write, will retry after reconnect");
+            // Pending calls will be retried by the main loop when we reconnect
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        } catch (InterruptedException e) {
+            logger.warn("interrupted");
+        }
+    }
+}
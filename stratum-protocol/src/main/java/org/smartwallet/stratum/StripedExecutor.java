@@ -0,0 +1,105 @@
+package org.smartwallet.stratum;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Spreads tasks over a fixed number of stripes, which run on a shared executor.
+ *
+ * <p>Tasks with the same key always go to the same stripe, and each stripe runs its tasks one at a time and in
+ * order.  So tasks for one key are ordered, while tasks for keys in different stripes run in parallel.
+ */
+class StripedExecutor {
+    protected static Logger logger = LoggerFactory.getLogger("StripedExecutor");
+
+    private final Stripe[] stripes;
+    @GuardedBy("this")
+    private int pending;
+
+    StripedExecutor(Executor executor, int count) {
+        checkArgument(count > 0);
+        stripes = new Stripe[count];
+        for (int i = 0 ; i < count ; i++)
+            stripes[i] = new Stripe(executor);
+    }
+
+    /** @return the stripe for a key, which runs tasks one at a time and in order */
+    Executor get(Object key) {
+        // Spread the bits, since hash codes of similar keys often differ only in a few of them
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /**
+     * Wait until no task is queued or running
+     *
+     * @return false if we timed out
+     */
+    synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    private synchronized void started() {
+        pending++;
+    }
+
+    private synchronized void finished() {
+        if (--pending == 0)
+            notifyAll();
+    }
+
+    private class Stripe implements Executor, Runnable {
+        final Executor executor;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean isScheduled = new AtomicBoolean();
+
+        Stripe(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            started();
+            tasks.add(command);
+            if (isScheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        logger.error("striped task failed", t);
+                    } finally {
+                        finished();
+                    }
+                }
+                isScheduled.set(false);
+                // A task may have been added after we found the queue empty, but before we cleared the flag
+                if (tasks.isEmpty() || !isScheduled.compareAndSet(false, true))
+                    return;
+            }
+        }
+    }
+}
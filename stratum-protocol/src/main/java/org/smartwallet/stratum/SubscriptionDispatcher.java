@@ -0,0 +1,245 @@
+package org.smartwallet.stratum;
+
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Hands subscription messages to consumers without ever blocking the thread that reads from the server.
+ *
+ * <p>Each subscription method buffers messages for its queue and for each of its listeners separately, so that
+ * a slow consumer only delays itself.  What happens when a consumer falls behind is decided by the
+ * {@link OverflowPolicy} of the subscription.  Listeners are called on their own executor, one message at a time
+ * and in order.
+ */
+public class SubscriptionDispatcher {
+    protected static Logger logger = LoggerFactory.getLogger("SubscriptionDispatcher");
+
+    /** What to do with messages that a consumer hasn't taken yet */
+    public enum OverflowPolicy {
+        /** Keep everything */
+        GROW,
+        /**
+         * Keep only the newest message for each key, which is the first param, such as the address.
+         * The buffer never holds more messages than there are keys.
+         */
+        COALESCE,
+        /** Keep at most the capacity, dropping the oldest messages */
+        DROP_OLDEST
+    }
+
+    public interface Listener {
+        void onMessage(StratumMessage message);
+    }
+
+    private static class Subscription {
+        final OverflowPolicy policy;
+        final int capacity;
+        // Created when the queue is first asked for
+        volatile Buffer queue;
+        final List<Delivery> deliveries = new CopyOnWriteArrayList<>();
+        // Listeners for a single key, which get its messages instead of the queue and the other listeners
+        final ConcurrentMap<String, Delivery> keyed = Maps.newConcurrentMap();
+
+        Subscription(OverflowPolicy policy, int capacity) {
+            this.policy = policy;
+            this.capacity = capacity;
+        }
+    }
+
+    private final ConcurrentMap<String, Subscription> subscriptions = Maps.newConcurrentMap();
+    private final OverflowPolicy defaultPolicy;
+    private final int defaultCapacity;
+
+    SubscriptionDispatcher(OverflowPolicy defaultPolicy, int defaultCapacity) {
+        this.defaultPolicy = defaultPolicy;
+        this.defaultCapacity = defaultCapacity;
+    }
+
+    /**
+     * Set how messages of a subscription are buffered.  Must be called before the queue is asked for or
+     * listeners are added.
+     *
+     * @param capacity the most messages kept with {@link OverflowPolicy#DROP_OLDEST}
+     */
+    void setOverflowPolicy(String method, OverflowPolicy policy, int capacity) {
+        checkArgument(capacity > 0);
+        Subscription old = subscriptions.put(method, new Subscription(policy, capacity));
+        checkState(old == null || (old.queue == null && old.deliveries.isEmpty()),
+                "overflow policy must be set before subscribing");
+    }
+
+    private Subscription get(String method) {
+        Subscription subscription = subscriptions.get(method);
+        if (subscription == null) {
+            subscriptions.putIfAbsent(method, new Subscription(defaultPolicy, defaultCapacity));
+            subscription = subscriptions.get(method);
+        }
+        return subscription;
+    }
+
+    /** @return the queue of a subscription, for consumers that prefer to take messages themselves */
+    BlockingQueue<StratumMessage> getQueue(String method) {
+        Subscription subscription = get(method);
+        synchronized (subscription) {
+            if (subscription.queue == null)
+                subscription.queue = new Buffer(subscription.policy, subscription.capacity);
+        }
+        return subscription.queue.deque;
+    }
+
+    void addListener(String method, Listener listener, Executor executor) {
+        Subscription subscription = get(method);
+        subscription.deliveries.add(
+                new Delivery(listener, executor, new Buffer(subscription.policy, subscription.capacity)));
+    }
+
+    /**
+     * Listen to the messages of a subscription for one key, such as an address.  These messages are not passed to
+     * the queue or to the other listeners.
+     */
+    void addListener(String method, String key, Listener listener, Executor executor) {
+        Subscription subscription = get(method);
+        subscription.keyed.put(key,
+                new Delivery(listener, executor, new Buffer(subscription.policy, subscription.capacity)));
+    }
+
+    void removeListener(String method, String key) {
+        get(method).keyed.remove(key);
+    }
+
+    void removeListener(String method, Listener listener) {
+        Subscription subscription = get(method);
+        for (Delivery delivery : subscription.deliveries) {
+            if (delivery.listener == listener)
+                subscription.deliveries.remove(delivery);
+        }
+    }
+
+    /**
+     * Never blocks
+     *
+     * @return how many messages the slowest consumer of the message has waiting
+     */
+    int dispatch(String method, StratumMessage message) {
+        Subscription subscription = subscriptions.get(method);
+        String key = key(message);
+        Delivery keyed = subscription != null && key != null ? subscription.keyed.get(key) : null;
+        if (keyed != null) {
+            keyed.add(message);
+            return keyed.buffer.deque.size();
+        }
+        if (subscription == null || (subscription.queue == null && subscription.deliveries.isEmpty())) {
+            logger.warn("message for unknown subscription {}", message.method);
+            return 0;
+        }
+        int backlog = 0;
+        Buffer queue = subscription.queue;
+        if (queue != null) {
+            queue.add(message);
+            backlog = queue.deque.size();
+        }
+        for (Delivery delivery : subscription.deliveries) {
+            delivery.add(message);
+            backlog = Math.max(backlog, delivery.buffer.deque.size());
+        }
+        return backlog;
+    }
+
+    /** Put a sentinel on each queue, so that consumers know we are done */
+    void close() {
+        for (Subscription subscription : subscriptions.values()) {
+            Buffer queue = subscription.queue;
+            if (queue != null)
+                queue.add(StratumMessage.SENTINEL);
+        }
+    }
+
+    private static String key(StratumMessage message) {
+        if (message.isSentinel() || message.params == null || message.params.isEmpty())
+            return null;
+        return message.params.get(0).asText();
+    }
+
+    /** A deque that applies an overflow policy when messages are added */
+    private static class Buffer {
+        final OverflowPolicy policy;
+        final LinkedBlockingDeque<StratumMessage> deque;
+
+        Buffer(OverflowPolicy policy, int capacity) {
+            this.policy = policy;
+            this.deque = policy == OverflowPolicy.DROP_OLDEST ?
+                    new LinkedBlockingDeque<StratumMessage>(capacity) : new LinkedBlockingDeque<StratumMessage>();
+        }
+
+        // Consumers take without the lock, which is only needed to make replacing and dropping atomic
+        synchronized void add(StratumMessage message) {
+            if (policy == OverflowPolicy.COALESCE) {
+                String key = key(message);
+                if (key != null) {
+                    Iterator<StratumMessage> iterator = deque.iterator();
+                    while (iterator.hasNext()) {
+                        if (key.equals(key(iterator.next())))
+                            iterator.remove();
+                    }
+                }
+            }
+            while (!deque.offerLast(message)) {
+                StratumMessage dropped = deque.pollFirst();
+                if (dropped != null)
+                    logger.info("dropped {}", dropped.method);
+            }
+        }
+
+    }
+
+    /** Delivers messages to a listener on its executor, one at a time */
+    private static class Delivery implements Runnable {
+        final Listener listener;
+        final Executor executor;
+        final Buffer buffer;
+        final AtomicBoolean isScheduled = new AtomicBoolean();
+
+        Delivery(Listener listener, Executor executor, Buffer buffer) {
+            this.listener = listener;
+            this.executor = executor;
+            this.buffer = buffer;
+        }
+
+        void add(StratumMessage message) {
+            buffer.add(message);
+            if (isScheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                StratumMessage message;
+                while ((message = buffer.deque.pollFirst()) != null) {
+                    try {
+                        listener.onMessage(message);
+                    } catch (Throwable t) {
+                        logger.error("subscription listener failed", t);
+                    }
+                }
+                isScheduled.set(false);
+                // A message may have been added after we found the buffer empty, but before we cleared the flag
+                if (buffer.deque.isEmpty() || !isScheduled.compareAndSet(false, true))
+                    return;
+            }
+        }
+    }
+}
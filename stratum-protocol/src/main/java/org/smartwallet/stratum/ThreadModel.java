@@ -0,0 +1,138 @@
+package org.smartwallet.stratum;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Where clients, chains and wallets run their work.
+ *
+ * <p>There are two kinds of work.  Long running threads, such as a blocking socket reader or a queue listener,
+ * get a thread each from {@link #newThreadFactory(String)}.  Short tasks, such as {@link StratumClient#callAsync},
+ * go to the shared {@link #getTaskExecutor()}.
+ *
+ * <p>The default model uses platform threads, with a bounded pool for tasks.  On JVMs with virtual threads,
+ * {@link #newVirtual()} runs everything on virtual threads instead.
+ */
+public abstract class ThreadModel {
+    protected static Logger logger = LoggerFactory.getLogger("ThreadModel");
+    private static final Thread.UncaughtExceptionHandler uncaughtExceptionHandler =
+            new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread t, Throwable e) {
+                    logger.error("uncaught exception", e);
+                }
+            };
+    private static final ThreadModel defaultModel =
+            newPooled(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /** @return the shared executor for short tasks */
+    public abstract Executor getTaskExecutor();
+
+    /**
+     * @param nameFormat thread name, which may include %d for a sequence number
+     * @return a factory for daemon threads that log uncaught exceptions
+     */
+    public ThreadFactory newThreadFactory(String nameFormat) {
+        return new ThreadFactoryBuilder()
+                .setThreadFactory(getBaseThreadFactory())
+                .setDaemon(true)
+                .setNameFormat(nameFormat)
+                .setUncaughtExceptionHandler(uncaughtExceptionHandler)
+                .build();
+    }
+
+    /** @return an executor that runs each command on a new thread with this name, for services */
+    public Executor newServiceExecutor(String name) {
+        final ThreadFactory factory = newThreadFactory(name);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                factory.newThread(command).start();
+            }
+        };
+    }
+
+    protected abstract ThreadFactory getBaseThreadFactory();
+
+    /** The model used unless another one is injected, which shares one task pool among all users */
+    public static ThreadModel getDefault() {
+        return defaultModel;
+    }
+
+    /**
+     * Platform threads, with a pool of up to maxThreads for tasks.  Idle pool threads exit after a minute.
+     */
+    public static ThreadModel newPooled(final int maxThreads) {
+        checkArgument(maxThreads > 0);
+        return new ThreadModel() {
+            private final ThreadPoolExecutor tasks = newTaskPool(this, maxThreads);
+
+            @Override
+            public Executor getTaskExecutor() {
+                return tasks;
+            }
+
+            @Override
+            protected ThreadFactory getBaseThreadFactory() {
+                return Executors.defaultThreadFactory();
+            }
+        };
+    }
+
+    private static ThreadPoolExecutor newTaskPool(ThreadModel model, int maxThreads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), model.newThreadFactory("stratum-task-%d"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /** @return true if this JVM has virtual threads */
+    public static boolean isVirtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Virtual threads for everything, with a new virtual thread per task.
+     *
+     * @throws UnsupportedOperationException if this JVM does not have virtual threads
+     */
+    public static ThreadModel newVirtual() {
+        if (!isVirtualSupported())
+            throw new UnsupportedOperationException("virtual threads are not supported by this JVM");
+        // Built by reflection, since we compile for older JVMs
+        final ThreadFactory factory;
+        final Executor tasks;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            tasks = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException e) {
+            throw new UnsupportedOperationException(e);
+        } catch (InvocationTargetException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        return new ThreadModel() {
+            @Override
+            public Executor getTaskExecutor() {
+                return tasks;
+            }
+
+            @Override
+            protected ThreadFactory getBaseThreadFactory() {
+                return factory;
+            }
+        };
+    }
+}
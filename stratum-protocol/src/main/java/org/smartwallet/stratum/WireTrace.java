@@ -0,0 +1,96 @@
+package org.smartwallet.stratum;
+
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Logs frames sent and received, for debugging.
+ *
+ * <p>Off by default, in which case nothing is serialized or converted to text just to be logged.  When enabled,
+ * frames can be limited to some methods and sampled, and long frames are truncated, so that tracing a busy
+ * connection with large header chunks stays cheap.  A received reply is matched by the method of its call.
+ * Frames are logged at info level to the {@code StratumWire} logger.
+ *
+ * <p>Can be enabled and disabled while connected.
+ */
+public class WireTrace {
+    protected static Logger logger = LoggerFactory.getLogger("StratumWire");
+    public static final int DEFAULT_MAX_LENGTH = 1024;
+
+    private volatile boolean isEnabled;
+    private volatile Set<String> methods = ImmutableSet.of();
+    private volatile int sampleEvery = 1;
+    private volatile int maxLength = DEFAULT_MAX_LENGTH;
+    private final AtomicLong count = new AtomicLong();
+
+    /** Trace every frame, truncated to {@link #DEFAULT_MAX_LENGTH} characters */
+    public void enable() {
+        enable(1, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param sampleEvery trace one of this many matching frames
+     * @param maxLength frames are truncated to this many characters
+     * @param methods only trace frames of these methods, or all if none are given
+     */
+    public void enable(int sampleEvery, int maxLength, String... methods) {
+        checkArgument(sampleEvery > 0 && maxLength > 0);
+        this.sampleEvery = sampleEvery;
+        this.maxLength = maxLength;
+        this.methods = ImmutableSet.copyOf(methods);
+        isEnabled = true;
+    }
+
+    public void disable() {
+        isEnabled = false;
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Cheap when disabled.  Counts towards the sample rate, so only ask once per frame.
+     *
+     * @param method the method of the frame, or null if unknown
+     * @return whether a frame of this method should be traced
+     */
+    boolean isTraced(@Nullable String method) {
+        if (!isEnabled)
+            return false;
+        Set<String> current = methods;
+        if (!current.isEmpty() && (method == null || !current.contains(method)))
+            return false;
+        return count.getAndIncrement() % sampleEvery == 0;
+    }
+
+    /** @param frame a frame about to be sent, including the line terminator.  Its position is not changed. */
+    void sent(ByteBuffer frame) {
+        log(">", frame.array(), frame.arrayOffset() + frame.position(), frame.remaining() - 1);
+    }
+
+    /** @param length not including the line terminator */
+    void received(byte[] data, int offset, int length) {
+        log("<", data, offset, length);
+    }
+
+    private void log(String direction, byte[] data, int offset, int length) {
+        int limit = maxLength;
+        if (length <= limit) {
+            logger.info("{} {}", direction, new String(data, offset, length, StandardCharsets.UTF_8));
+        } else {
+            // A multi-byte character may be cut, which only garbles the last character
+            logger.info("{} {}... ({} bytes)", direction,
+                    new String(data, offset, limit, StandardCharsets.UTF_8), length);
+        }
+    }
+}
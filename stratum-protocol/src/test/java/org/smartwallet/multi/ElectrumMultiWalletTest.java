@@ -192,7 +192,7 @@ public class ElectrumMultiWalletTest {
     public void testSubscribeToKeys() throws Exception {
         SettableFuture<StratumMessage> future = SettableFuture.create();
         StratumSubscription subscription = new StratumSubscription(future);
-        expect(client.subscribe(isA(Address.class)))
+        expect(client.subscribe(isA(Address.class), isA(SubscriptionDispatcher.Listener.class)))
                 .andReturn(subscription).times(26); // (10 + 3) * 2
         control.replay();
         multiWallet.subscribeToKeys();
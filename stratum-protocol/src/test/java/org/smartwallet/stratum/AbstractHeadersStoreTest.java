@@ -0,0 +1,185 @@
+package org.smartwallet.stratum;
+
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/** Tests run against each kind of {@link HeadersStore} */
+public abstract class AbstractHeadersStoreTest {
+    private long nonce = 0;
+    protected NetworkParameters params;
+    protected File file;
+
+    /** Open the store in {@link #file} */
+    protected abstract HeadersStore open(@Nullable StoredBlock checkpoint);
+
+    @Before
+    public void setUp() throws IOException {
+        params = NetworkParameters.fromID(NetworkParameters.ID_UNITTESTNET);
+        file = File.createTempFile("stratum-headers", ".chain");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        HeadersIndex.fileFor(file).delete();
+    }
+
+    @Test
+    public void addAndReopen() {
+        HeadersStore store = open(null);
+        Block block1 = makeBlock(params.getGenesisBlock().getHash());
+        Block block2 = makeBlock(block1.getHash());
+        assertEquals(0, store.getHeight());
+        assertTrue(store.add(block1));
+        assertTrue(store.add(block2));
+        assertFalse(store.add(makeBlock(block1.getHash())));
+        assertEquals(2, store.getHeight());
+        assertEquals(params.getGenesisBlock(), store.get(0));
+        assertEquals(block2, store.top());
+        assertNull(store.get(3));
+        store.truncate(1);
+        assertEquals(1, store.getHeight());
+        assertNull(store.get(2));
+        store.close();
+        assertEquals(2 * Block.HEADER_SIZE, file.length());
+
+        store = open(null);
+        assertEquals(1, store.getHeight());
+        assertEquals(block1, store.top());
+        store.close();
+    }
+
+    @Test
+    public void checkpoint() {
+        Block block1 = makeBlock(params.getGenesisBlock().getHash());
+        Block block2 = makeBlock(block1.getHash());
+        HeadersStore store = open(new StoredBlock(block1, BigInteger.ZERO, 10));
+        assertEquals(10, store.getHeight());
+        assertNull(store.get(1));
+        assertTrue(store.add(block2));
+        assertEquals(block2, store.get(11));
+        store.close();
+    }
+
+    @Test
+    public void addAll() {
+        HeadersStore store = open(null);
+        Block block1 = makeBlock(params.getGenesisBlock().getHash());
+        Block block2 = makeBlock(block1.getHash());
+        Block block3 = makeBlock(block2.getHash());
+        ByteBuffer headers = serialize(block1, block2, block3);
+        assertEquals(3, store.addAll(headers));
+        assertEquals(0, headers.position());
+        assertEquals(3, store.getHeight());
+        assertEquals(block2, store.get(2));
+        assertEquals(block3, store.top());
+        assertEquals(block3.getHash(), store.tipHash());
+
+        // The second one doesn't connect
+        Block block4 = makeBlock(block3.getHash());
+        Block block5 = makeBlock(block3.getHash());
+        assertEquals(1, store.addAll(serialize(block4, block5)));
+        assertEquals(4, store.getHeight());
+        assertEquals(block4, store.top());
+        store.truncate(2);
+        assertEquals(block2.getHash(), store.tipHash());
+        assertNull(store.get(3));
+        store.close();
+    }
+
+    @Test
+    public void hashIndex() {
+        HeadersStore store = open(null);
+        Block block1 = makeBlock(params.getGenesisBlock().getHash());
+        Block block2 = makeBlock(block1.getHash());
+        Block block3 = makeBlock(block2.getHash());
+        assertTrue(store.add(block1));
+        assertEquals(2, store.addAll(serialize(block2, block3)));
+        assertEquals(0, store.getHeight(params.getGenesisBlock().getHash()));
+        assertEquals(2, store.getHeight(block2.getHash()));
+        assertEquals(3, store.getHeight(block3.getHash()));
+        assertEquals(-1, store.getHeight(Sha256Hash.ZERO_HASH));
+
+        // Reorg
+        store.truncate(1);
+        Block fork = makeBlock(block1.getHash());
+        assertTrue(store.add(fork));
+        assertEquals(-1, store.getHeight(block2.getHash()));
+        assertEquals(-1, store.getHeight(block3.getHash()));
+        assertEquals(2, store.getHeight(fork.getHash()));
+        store.close();
+
+        // Headers added while the index was missing are found after it is rebuilt
+        HeadersIndex.fileFor(file).delete();
+        store = open(null);
+        assertEquals(1, store.getHeight(block1.getHash()));
+        assertEquals(2, store.getHeight(fork.getHash()));
+        store.close();
+    }
+
+    @Test
+    public void cache() {
+        HeadersStore store = open(null);
+        Block block1 = makeBlock(params.getGenesisBlock().getHash());
+        Block block2 = makeBlock(block1.getHash());
+        Block block3 = makeBlock(block2.getHash());
+        assertEquals(3, store.addAll(serialize(block1, block2, block3)));
+        Block cached = store.get(1);
+        assertEquals(block1, cached);
+        assertEquals(0, store.getCacheHits());
+        assertEquals(1, store.getCacheMisses());
+        assertSame(cached, store.get(1));
+        assertEquals(1, store.getCacheHits());
+        // The tip is not counted
+        store.get(3);
+        assertEquals(1, store.getCacheHits());
+        assertEquals(1, store.getCacheMisses());
+
+        // The old tip is cached when the tip moves
+        Block block4 = makeBlock(block3.getHash());
+        assertTrue(store.add(block4));
+        assertSame(store.get(3), store.get(3));
+        assertEquals(3, store.getCacheHits());
+
+        // Reorg
+        store.get(2);
+        store.truncate(1);
+        Block fork2 = makeBlock(block1.getHash());
+        Block fork3 = makeBlock(fork2.getHash());
+        assertTrue(store.add(fork2));
+        assertTrue(store.add(fork3));
+        assertEquals(fork2, store.get(2));
+        assertNull(store.get(4));
+        assertSame(cached, store.get(1));
+
+        store.setCacheSize(0);
+        assertEquals(block1, store.get(1));
+        assertFalse(store.get(1) == store.get(1));
+        store.close();
+    }
+
+    protected static ByteBuffer serialize(Block... blocks) {
+        ByteBuffer buffer = ByteBuffer.allocate(blocks.length * Block.HEADER_SIZE);
+        for (Block block : blocks)
+            buffer.put(block.bitcoinSerialize());
+        buffer.flip();
+        return buffer;
+    }
+
+    protected Block makeBlock(Sha256Hash prev) {
+        return new Block(params, 4, prev, Sha256Hash.ZERO_HASH, 100, 200, nonce++,
+                Lists.<Transaction>newArrayList()).cloneAsHeader();
+    }
+}
@@ -0,0 +1,49 @@
+package org.smartwallet.stratum;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameLanesTest {
+    private static ByteBuffer frame(int tag) {
+        ByteBuffer frame = ByteBuffer.allocate(1);
+        frame.put(0, (byte) tag);
+        return frame;
+    }
+
+    private static int poll(FrameLanes lanes) {
+        return lanes.poll().get(0);
+    }
+
+    @Test
+    public void priority() {
+        FrameLanes lanes = new FrameLanes();
+        lanes.add(frame(3), StratumClient.Priority.BULK);
+        lanes.add(frame(2), StratumClient.Priority.INTERACTIVE);
+        lanes.add(frame(1), StratumClient.Priority.CONTROL);
+        lanes.add(frame(4), StratumClient.Priority.BULK);
+        assertEquals(1, poll(lanes));
+        assertEquals(2, poll(lanes));
+        assertEquals(3, poll(lanes));
+        assertEquals(4, poll(lanes));
+        assertNull(lanes.poll());
+        assertTrue(lanes.isEmpty());
+    }
+
+    @Test
+    public void fairness() {
+        FrameLanes lanes = new FrameLanes();
+        lanes.add(frame(0), StratumClient.Priority.BULK);
+        for (int i = 1 ; i <= 20 ; i++)
+            lanes.add(frame(i), StratumClient.Priority.INTERACTIVE);
+        for (int i = 1 ; i <= FrameLanes.MAX_PASSES ; i++)
+            assertEquals(i, poll(lanes));
+        // Bulk was passed over often enough
+        assertEquals(0, poll(lanes));
+        assertEquals(FrameLanes.MAX_PASSES + 1, poll(lanes));
+    }
+}
@@ -0,0 +1,63 @@
+package org.smartwallet.stratum;
+
+import com.google.common.primitives.Longs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class HeadersIndexTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("stratum-headers", ".index");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void collisions() throws IOException {
+        HeadersIndex index = new HeadersIndex(file);
+        assertEquals(-1, index.getHeight());
+        // Same home slot, and the table grows
+        int count = HeadersIndex.MIN_CAPACITY;
+        for (int i = 0 ; i < count ; i++)
+            index.put((long) (i % 3) * HeadersIndex.MIN_CAPACITY * 2, i);
+        index.remove(0, 0);
+        index.remove(0, 3);
+        assertEquals(count - 2, index.size());
+        assertEquals(count / 3 - 1, index.find(0).length);
+        assertEquals(count / 3, index.find((long) HeadersIndex.MIN_CAPACITY * 2).length);
+        index.commit(count - 1, 7);
+        index.close();
+
+        index = new HeadersIndex(file);
+        assertEquals(count - 1, index.getHeight());
+        assertEquals(7, index.getTipKey());
+        assertEquals(count - 2, index.size());
+        assertTrue(Longs.contains(index.find((long) HeadersIndex.MIN_CAPACITY * 2), 4));
+        assertFalse(Longs.contains(index.find(0), 3));
+        index.close();
+    }
+
+    @Test
+    public void dirtyIsRebuilt() throws IOException {
+        HeadersIndex index = new HeadersIndex(file);
+        index.put(1, 1);
+        index.commit(1, 1);
+        // Changed without a commit, as if we crashed
+        index.put(2, 2);
+        index.close();
+        index = new HeadersIndex(file);
+        assertEquals(-1, index.getHeight());
+        index.close();
+    }
+}
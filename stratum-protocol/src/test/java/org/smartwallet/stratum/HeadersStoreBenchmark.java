@@ -0,0 +1,101 @@
+package org.smartwallet.stratum;
+
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Measures adding linked headers to {@link HeadersStore} and {@link MappedHeadersStore}, reading the tip after
+ * each add the way the chain and the wallet do, and getting recent headers and their hashes over and over the way
+ * the wallet does, with and without the header cache.
+ *
+ * <p>Not a unit test.  Run the main method with the test classpath, optionally with the number of headers and rounds,
+ * and the directory for the store files.  Each store is created fresh in every round, and the median of the rounds
+ * is printed.
+ */
+public class HeadersStoreBenchmark {
+    // Keeps the tip reads from being optimized away
+    private static volatile long sink;
+
+    // How many of the most recent headers are got over and over
+    private static final int RECENT = 50;
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 7;
+        File directory = args.length > 2 ? new File(args[2]) : null;
+
+        NetworkParameters params = NetworkParameters.fromID(NetworkParameters.ID_UNITTESTNET);
+        Block[] blocks = new Block[count];
+        Sha256Hash prev = params.getGenesisBlock().getHash();
+        for (int i = 0 ; i < count ; i++) {
+            blocks[i] = new Block(params, 4, prev, Sha256Hash.ZERO_HASH, 100, 200, i,
+                    Lists.<Transaction>newArrayList()).cloneAsHeader();
+            prev = blocks[i].getHash();
+        }
+
+        for (boolean isMapped : new boolean[] {false, true}) {
+            double[] adds = new double[rounds];
+            double[] tips = new double[rounds];
+            double[] uncached = new double[rounds];
+            double[] cached = new double[rounds];
+            for (int round = 0 ; round < rounds ; round++) {
+                File file = File.createTempFile("benchmark", ".chain", directory);
+                file.delete();
+                HeadersStore store = isMapped ? new MappedHeadersStore(params, file, null, null) :
+                        new HeadersStore(params, file, null, null);
+                try {
+                    long start = System.nanoTime();
+                    for (Block block : blocks) {
+                        if (!store.add(block))
+                            throw new IllegalStateException("header did not link");
+                    }
+                    adds[round] = count / ((System.nanoTime() - start) / 1e9);
+
+                    start = System.nanoTime();
+                    long sum = 0;
+                    for (int i = 0 ; i < count ; i++)
+                        sum += store.getHeight() + store.top().getHash().hashCode();
+                    tips[round] = count / ((System.nanoTime() - start) / 1e9);
+                    sink = sum;
+
+                    store.setCacheSize(0);
+                    uncached[round] = getRecent(store, count);
+                    store.setCacheSize(HeadersStore.DEFAULT_CACHE_SIZE);
+                    cached[round] = getRecent(store, count);
+                } finally {
+                    store.close();
+                    file.delete();
+                    new File(file.getPath() + ".index").delete();
+                }
+            }
+            System.out.printf("%s: add %.0f/s, tip reads %.0f/s (median of %d rounds, %d headers)%n",
+                    isMapped ? "MappedHeadersStore" : "HeadersStore", median(adds), median(tips), rounds, count);
+            System.out.printf("  recent gets %.0f/s uncached, %.0f/s cached%n", median(uncached), median(cached));
+        }
+    }
+
+    /** @return how many of the recent headers and their hashes were got per second */
+    private static double getRecent(HeadersStore store, int count) {
+        long height = store.getHeight();
+        long start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0 ; i < count ; i++)
+            sum += store.get(height - 1 - i % RECENT).getHash().hashCode();
+        double rate = count / ((System.nanoTime() - start) / 1e9);
+        sink = sum;
+        return rate;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
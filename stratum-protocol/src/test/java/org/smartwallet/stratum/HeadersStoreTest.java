@@ -0,0 +1,12 @@
+package org.smartwallet.stratum;
+
+import org.bitcoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+
+public class HeadersStoreTest extends AbstractHeadersStoreTest {
+    @Override
+    protected HeadersStore open(@Nullable StoredBlock checkpoint) {
+        return new HeadersStore(params, file, checkpoint, null);
+    }
+}
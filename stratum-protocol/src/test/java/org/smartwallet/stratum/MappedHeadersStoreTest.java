@@ -0,0 +1,12 @@
+package org.smartwallet.stratum;
+
+import org.bitcoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+
+public class MappedHeadersStoreTest extends AbstractHeadersStoreTest {
+    @Override
+    protected HeadersStore open(@Nullable StoredBlock checkpoint) {
+        return new MappedHeadersStore(params, file, checkpoint, null);
+    }
+}
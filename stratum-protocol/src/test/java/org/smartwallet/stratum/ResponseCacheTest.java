@@ -0,0 +1,60 @@
+package org.smartwallet.stratum;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ResponseCacheTest {
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void memoryEviction() {
+        ResponseCache cache = new ResponseCache(10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        // Use a, so that b is evicted first
+        cache.get("a");
+        cache.put("c", new byte[4]);
+        assertNull(cache.get("b"));
+        assertArrayEquals(new byte[4], cache.get("a"));
+        assertArrayEquals(new byte[4], cache.get("c"));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void disk() {
+        ResponseCache cache = new ResponseCache(100, directory, 10);
+        cache.put("a", new byte[] {1, 2, 3, 4});
+        cache.put("b", new byte[] {5, 6, 7, 8});
+        cache.put("c", new byte[] {9, 10, 11, 12});
+        assertEquals(2, directory.listFiles().length);
+
+        ResponseCache reloaded = new ResponseCache(100, directory, 10);
+        assertNull(reloaded.get("a"));
+        assertArrayEquals(new byte[] {5, 6, 7, 8}, reloaded.get("b"));
+        assertArrayEquals(new byte[] {9, 10, 11, 12}, reloaded.get("c"));
+    }
+}
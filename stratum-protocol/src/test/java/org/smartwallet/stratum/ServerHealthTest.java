@@ -0,0 +1,110 @@
+package org.smartwallet.stratum;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ServerHealthTest {
+    private ServerHealth health;
+    private InetSocketAddress fast;
+    private InetSocketAddress slow;
+    private List<InetSocketAddress> servers;
+
+    @Before
+    public void setUp() {
+        health = new ServerHealth();
+        fast = InetSocketAddress.createUnresolved("fast", 50002);
+        slow = InetSocketAddress.createUnresolved("slow", 50002);
+        servers = Lists.newArrayList(slow, fast);
+        health.recordConnected(fast, 20);
+        health.recordConnected(slow, 20);
+        health.recordPing(fast, 30);
+        health.recordPing(slow, 900);
+    }
+
+    @Test
+    public void selectFastest() {
+        for (int i = 0 ; i < 10 ; i++)
+            assertEquals(fast, health.select(servers, Collections.<InetSocketAddress>emptyList()));
+        // Resolved and unresolved addresses are the same server
+        assertEquals(slow, health.select(servers, Lists.newArrayList(new InetSocketAddress("fast", 50002))));
+    }
+
+    @Test
+    public void backoff() {
+        health.recordFailure(fast);
+        assertEquals(slow, health.select(servers, Collections.<InetSocketAddress>emptyList()));
+        assertEquals(0, health.reconnectDelay(servers));
+        health.recordFailure(slow);
+        health.recordFailure(slow);
+        // Both backing off, fast is available sooner
+        assertEquals(fast, health.select(servers, Collections.<InetSocketAddress>emptyList()));
+        long delay = health.reconnectDelay(servers);
+        assertTrue(delay > 0 && delay <= 1000);
+        assertEquals(2, health.getStats(slow).consecutiveFailures);
+        health.recordPing(slow, 900);
+        assertEquals(0, health.getStats(slow).consecutiveFailures);
+    }
+
+    @Test
+    public void flapping() {
+        health.recordDisconnect(fast);
+        ServerHealth.Stats stats = health.getStats(fast);
+        assertEquals(1, stats.disconnects);
+        assertEquals(1, stats.failures);
+    }
+
+    @Test
+    public void persist() throws Exception {
+        File file = File.createTempFile("stratum-servers", ".json");
+        file.delete();
+        health = new ServerHealth(file);
+        health.recordConnected(fast, 20);
+        health.recordFailure(slow);
+        health.save();
+        ServerHealth loaded = new ServerHealth(file);
+        assertEquals(20, loaded.getStats(fast).connectMillis);
+        assertEquals(1, loaded.getStats(slow).failures);
+        assertTrue(loaded.getStats(slow).lastFailure > 0);
+        file.delete();
+    }
+
+    @Test
+    public void concurrentSave() throws Exception {
+        final File file = File.createTempFile("stratum-servers", ".json");
+        file.delete();
+        health = new ServerHealth(file);
+        health.recordConnected(fast, 20);
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0 ; i < 4 ; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0 ; j < 20 ; j++)
+                        health.save();
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(20, new ServerHealth(file).getStats(fast).connectMillis);
+        File[] temps = file.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(file.getName()) && name.endsWith(".tmp");
+            }
+        });
+        assertEquals(0, temps.length);
+        file.delete();
+    }
+}
@@ -1,8 +1,10 @@
 package org.smartwallet.stratum;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import org.bitcoinj.core.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -10,6 +12,8 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import static org.easymock.EasyMock.*;
@@ -102,6 +106,57 @@ public class StratumChainTest {
         verify(client);
     }
 
+    @Test
+    public void chunk() throws IOException, ExecutionException, InterruptedException {
+        List<Block> blocks = Lists.newArrayList(params.getGenesisBlock().cloneAsHeader());
+        StringBuilder hex = new StringBuilder();
+        hex.append(Utils.HEX.encode(blocks.get(0).bitcoinSerialize()));
+        for (int i = 1 ; i <= 60 ; i++) {
+            blocks.add(makeBlock(blocks.get(i - 1).getHash()));
+            hex.append(Utils.HEX.encode(blocks.get(i).bitcoinSerialize()));
+        }
+        StratumMessage message = decodeChunk("{\"id\": 5, \"result\": \"" + hex + "\"}\n");
+        assertEquals(61 * Block.HEADER_SIZE, message.readResultBuffer().remaining());
+
+        expect(client.call(StratumClient.BLOCKCHAIN_GET_CHUNK, 0)).andReturn(Futures.immediateFuture(message));
+        expect(client.call("blockchain.block.get_header", 61)).andReturn(null);
+        replay(client);
+        assertFalse(chain.handleBlock(100, makeBlock(Sha256Hash.ZERO_HASH)));
+        assertEquals(60, store.getHeight());
+        for (int i = 0 ; i <= 60 ; i++)
+            assertEquals(blocks.get(i), store.get(i));
+        verify(client);
+    }
+
+    private StratumMessage decodeChunk(String frame) throws IOException {
+        final List<StratumMessage> messages = Lists.newArrayList();
+        StratumDecoder decoder = new StratumDecoder(new ObjectMapper(), new BufferPool(Block.HEADER_SIZE, 1), 100000,
+                new StratumDecoder.Handler() {
+                    @Override
+                    public StratumDecoder.ResultMode resultMode(long id) {
+                        return StratumDecoder.ResultMode.HEX;
+                    }
+
+                    @Override
+                    public void onFrame(int length) {
+                    }
+
+                    @Override
+                    public String callMethod(long id) {
+                        return StratumClient.BLOCKCHAIN_GET_CHUNK;
+                    }
+
+                    @Override
+                    public void onMessage(StratumMessage message) {
+                        messages.add(message);
+                    }
+                }, new WireTrace());
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        decoder.decode(bytes, 0, bytes.length);
+        assertEquals(1, messages.size());
+        return messages.get(0);
+    }
+
     private JsonNode blockToJson(long height, Block block) {
         return JsonNodeFactory.instance.objectNode()
                 .put("timestamp", block.getTimeSeconds())
@@ -0,0 +1,180 @@
+package org.smartwallet.stratum;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StratumClientTest {
+    private ServerSocket server;
+    private StratumClient client;
+    private final List<Thread> threads = Collections.synchronizedList(Lists.<Thread>newArrayList());
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        InetSocketAddress address = InetSocketAddress.createUnresolved("localhost", server.getLocalPort());
+        client = new StratumClient(NetworkParameters.fromID(NetworkParameters.ID_TESTNET),
+                Lists.newArrayList(address), false);
+        // Keep track of the threads the client starts
+        client.setThreadModel(new ThreadModel() {
+            @Override
+            public Executor getTaskExecutor() {
+                return ThreadModel.getDefault().getTaskExecutor();
+            }
+
+            @Override
+            protected ThreadFactory getBaseThreadFactory() {
+                return new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable);
+                        threads.add(thread);
+                        return thread;
+                    }
+                };
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void stopEndsWriter() throws Exception {
+        client.startAsync().awaitRunning();
+        Socket accepted = server.accept();
+        Thread writer = null;
+        for (int i = 0 ; i < 100 && writer == null ; i++) {
+            synchronized (threads) {
+                for (Thread thread : threads) {
+                    if (thread.getName().equals("StratumWriter"))
+                        writer = thread;
+                }
+            }
+            if (writer == null)
+                Thread.sleep(50);
+        }
+        assertNotNull(writer);
+        client.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        accepted.close();
+    }
+
+    @Test
+    public void stopIsNotAFailure() throws Exception {
+        client.startAsync().awaitRunning();
+        Socket accepted = server.accept();
+        // Wait for the first ping, which is never answered
+        BufferedReader reader = new BufferedReader(new InputStreamReader(accepted.getInputStream(), "UTF-8"));
+        assertTrue(reader.readLine().contains(StratumClient.SERVER_VERSION));
+        client.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+        InetSocketAddress address = InetSocketAddress.createUnresolved("localhost", server.getLocalPort());
+        assertEquals(0, client.getServerHealth().getStats(address).failures);
+        accepted.close();
+    }
+
+    @Test
+    public void cachedReplyHasResult() throws Exception {
+        byte[] tx = {1, 2, 3};
+        String hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(tx)).toString();
+        ResponseCache cache = new ResponseCache(1000);
+        cache.put(StratumClient.BLOCKCHAIN_TRANSACTION_GET + "[\"" + hash + "\"]", tx);
+        client.setResponseCache(cache);
+        // Served from the cache, without connecting
+        StratumMessage reply = client.call(StratumClient.BLOCKCHAIN_TRANSACTION_GET, hash).get(5, TimeUnit.SECONDS);
+        assertEquals(1, cache.getHits());
+        assertEquals("010203", reply.result.asText());
+    }
+
+    @Test
+    public void callWhenNotRunning() throws Exception {
+        List<ListenableFuture<StratumMessage>> futures = Lists.newArrayList(
+                client.callBatch(StratumClient.BLOCKCHAIN_TRANSACTION_GET, Lists.newArrayList("01", "02")));
+        futures.add(client.call(StratumClient.BLOCKCHAIN_TRANSACTION_GET, "00"));
+        for (ListenableFuture<StratumMessage> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals("not running", e.getCause().getMessage());
+            }
+        }
+        // Neither registered nor holding the window
+        assertEquals(0, client.getPendingCount());
+        assertEquals(0, client.getWindowUtilisation(), 0);
+    }
+
+    @Test
+    public void liveRawReplyIsCached() throws Exception {
+        byte[] tx = {1, 2, 3};
+        String hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(tx)).toString();
+        String emptyHash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(new byte[0])).toString();
+        String badHash = Sha256Hash.ZERO_HASH.toString();
+        ResponseCache cache = new ResponseCache(1000);
+        client.setResponseCache(cache);
+        client.setRawResults(true);
+        client.startAsync().awaitRunning();
+        Socket accepted = server.accept();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(accepted.getInputStream(), "UTF-8"));
+        OutputStream out = accepted.getOutputStream();
+
+        StratumMessage reply = callAndAnswer(reader, out, hash, "\"010203\"");
+        assertTrue(reply.isRawResult());
+        assertArrayEquals(tx, reply.readResultHex());
+        assertArrayEquals(tx, cache.get(StratumClient.BLOCKCHAIN_TRANSACTION_GET + "[\"" + hash + "\"]"));
+        // The second call is served from the cache
+        reply = client.call(StratumClient.BLOCKCHAIN_TRANSACTION_GET, hash).get(5, TimeUnit.SECONDS);
+        assertEquals(2, cache.getHits());
+        assertArrayEquals(tx, reply.readResultHex());
+
+        // Empty and undecodable results are not cached
+        callAndAnswer(reader, out, emptyHash, "\"\"");
+        assertNull(cache.get(StratumClient.BLOCKCHAIN_TRANSACTION_GET + "[\"" + emptyHash + "\"]"));
+        callAndAnswer(reader, out, badHash, "\"0x\"");
+        assertNull(cache.get(StratumClient.BLOCKCHAIN_TRANSACTION_GET + "[\"" + badHash + "\"]"));
+
+        client.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+        accepted.close();
+    }
+
+    // Call transaction.get, and answer it as the server with this result
+    private StratumMessage callAndAnswer(BufferedReader reader, OutputStream out, String hash, String result)
+            throws Exception {
+        ListenableFuture<StratumMessage> future = client.call(StratumClient.BLOCKCHAIN_TRANSACTION_GET, hash);
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode request;
+        do {
+            request = mapper.readTree(reader.readLine());
+        } while (!request.get("method").asText().equals(StratumClient.BLOCKCHAIN_TRANSACTION_GET));
+        String frame = "{\"id\": " + request.get("id").asLong() + ", \"result\": " + result + "}\n";
+        out.write(frame.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return future.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,152 @@
+package org.smartwallet.stratum;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class StratumDecoderTest {
+    ObjectMapper mapper = new ObjectMapper();
+    List<StratumMessage> messages;
+    Set<Long> expected;
+    StratumDecoder decoder;
+    BufferPool pool = new BufferPool(16, 1);
+    boolean isHex;
+
+    @Before
+    public void setUp() throws Exception {
+        messages = Lists.newArrayList();
+        expected = Sets.newHashSet(1L, 2L, 3L);
+        decoder = new StratumDecoder(mapper, pool, 100, new StratumDecoder.Handler() {
+            @Override
+            public StratumDecoder.ResultMode resultMode(long id) {
+                if (!expected.contains(id))
+                    return StratumDecoder.ResultMode.SKIP;
+                if (id == 3)
+                    return isHex ? StratumDecoder.ResultMode.HEX : StratumDecoder.ResultMode.RAW;
+                return StratumDecoder.ResultMode.TREE;
+            }
+
+            @Override
+            public void onFrame(int length) {
+            }
+
+            @Override
+            public String callMethod(long id) {
+                return null;
+            }
+
+            @Override
+            public void onMessage(StratumMessage message) {
+                messages.add(message);
+            }
+        }, new WireTrace());
+    }
+
+    @Test
+    public void frames() throws Exception {
+        decode("{\"id\":1, \"result\":{\"x\": 123}}\n{\"id\":2, \"res");
+        assertEquals(1, messages.size());
+        assertEquals(1L, (long) messages.get(0).id);
+        assertEquals(mapper.createObjectNode().put("x", 123), messages.get(0).result);
+        decode("ult\":[\"x\"]}\r\n\n{\"method\":\"a.b\", \"params\":[1, \"x\", null]}\n");
+        assertEquals(3, messages.size());
+        assertTrue(messages.get(1).isResult());
+        assertEquals(mapper.createArrayNode().add("x"), messages.get(1).result);
+        assertTrue(messages.get(2).isMessage());
+        assertEquals("a.b", messages.get(2).method);
+        assertEquals(Lists.newArrayList(new IntNode(1), new TextNode("x"), NullNode.getInstance()), messages.get(2).params);
+    }
+
+    @Test
+    public void batch() throws Exception {
+        decode("[{\"id\":1, \"result\":\"a\"}, {\"id\":2, \"error\":{\"code\":1}}, {\"id\":3, \"result\":null}]\n");
+        assertEquals(3, messages.size());
+        assertEquals(new TextNode("a"), messages.get(0).result);
+        assertTrue(messages.get(1).isError());
+        assertEquals("{\"code\":1}", messages.get(1).error);
+        assertTrue(messages.get(2).isResult());
+        assertEquals(NullNode.getInstance(), messages.get(2).result);
+    }
+
+    @Test
+    public void skipUnwanted() throws Exception {
+        decode("{\"id\":4, \"result\":{\"big\": [1, 2, 3]}, \"extra\":{\"y\":1}}\n");
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).isResult());
+        assertEquals(NullNode.getInstance(), messages.get(0).result);
+    }
+
+    @Test
+    public void rawResult() throws Exception {
+        decode("{\"id\":3, \"result\" : \"00ff\" , \"error\":null}\n{\"id\":3,\"result\":[{\"tx_hash\":\"ab\",\"height\":5}]}\n");
+        assertEquals(2, messages.size());
+        StratumMessage message = messages.get(0);
+        assertTrue(message.isResult());
+        assertTrue(message.isRawResult());
+        assertArrayEquals(new byte[] {0, (byte) 0xff}, message.readResultHex());
+        assertEquals(new TextNode("00ff"), message.readResult());
+        message = messages.get(1);
+        List<Map<String, Object>> history = message.readResult(new TypeReference<List<Map<String, Object>>>() {});
+        assertEquals(5, history.get(0).get("height"));
+        assertEquals("ab", message.readResult().get(0).get("tx_hash").asText());
+    }
+
+    @Test
+    public void rawResultLayout() throws Exception {
+        // Escapes and brackets in strings, scalars, and the result in various places
+        decode("{ \"error\" : null ,\"result\":{\"a\":\"]}\\\"\"},\"id\":3}\n");
+        decode("{\"id\":3,\"result\":\t12 }\n[{\"id\":3,\"result\":[1,[2]]},{\"id\":3,\"result\":true}]\n");
+        assertEquals(4, messages.size());
+        assertEquals("]}\"", messages.get(0).readResult().get("a").asText());
+        assertEquals(new IntNode(12), messages.get(1).readResult());
+        assertEquals(2, messages.get(2).readResult().get(1).get(0).asInt());
+        assertTrue(messages.get(3).readResult().asBoolean());
+    }
+
+    @Test
+    public void hexResult() throws Exception {
+        isHex = true;
+        decode("{\"id\":3,\"result\":\"00ff10\"}\n");
+        ByteBuffer buffer = messages.get(0).readResultBuffer();
+        assertEquals(16, buffer.capacity());
+        assertEquals(ByteBuffer.wrap(new byte[] {0, (byte) 0xff, 0x10}), buffer);
+        messages.get(0).release();
+        assertSame(buffer.array(), pool.acquire().array());
+        // Not hex, left for the consumer to deal with
+        decode("{\"id\":3,\"result\":\"0x\"}\n{\"id\":3,\"result\":{\"a\":1}}\n");
+        assertEquals(3, messages.size());
+        assertTrue(messages.get(1).isRawResult());
+        assertEquals(new TextNode("0x"), messages.get(1).readResult());
+        assertEquals(1, messages.get(2).readResult().get("a").asInt());
+    }
+
+    @Test(expected = IOException.class)
+    public void maxFrameSize() throws Exception {
+        StringBuilder builder = new StringBuilder("{\"id\":1, \"result\":\"");
+        for (int i = 0 ; i < 10 ; i++) {
+            builder.append("0123456789");
+            decode(builder.toString());
+            builder.setLength(0);
+        }
+    }
+
+    private void decode(String data) throws IOException {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        decoder.decode(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,52 @@
+package org.smartwallet.stratum;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StratumEventLoopTest {
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Test
+    public void runsTasks() throws Exception {
+        StratumEventLoop loop = new StratumEventLoop();
+        loop.startAsync().awaitRunning();
+        final CountDownLatch latch = new CountDownLatch(1);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        loop.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void rejectsAfterShutdown() throws Exception {
+        StratumEventLoop loop = new StratumEventLoop();
+        loop.startAsync().awaitRunning();
+        loop.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+        try {
+            loop.execute(NOTHING);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        try {
+            NioConnection.open(loop, new InetSocketAddress("localhost", 1), null, null, new BufferPool(16, 1));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.smartwallet.stratum;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionDispatcherTest {
+    private static final String METHOD = "blockchain.address.subscribe";
+    ObjectMapper mapper = new ObjectMapper();
+    SubscriptionDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        dispatcher = new SubscriptionDispatcher(SubscriptionDispatcher.OverflowPolicy.GROW, 2);
+    }
+
+    private StratumMessage message(String address, String status) {
+        return new StratumMessage(null, METHOD, Lists.<Object>newArrayList(address, status), mapper);
+    }
+
+    @Test
+    public void grow() {
+        BlockingQueue<StratumMessage> queue = dispatcher.getQueue(METHOD);
+        for (int i = 0 ; i < 5 ; i++)
+            dispatcher.dispatch(METHOD, message("a", "s" + i));
+        assertEquals(5, queue.size());
+    }
+
+    @Test
+    public void coalesce() {
+        dispatcher.setOverflowPolicy(METHOD, SubscriptionDispatcher.OverflowPolicy.COALESCE, 2);
+        BlockingQueue<StratumMessage> queue = dispatcher.getQueue(METHOD);
+        dispatcher.dispatch(METHOD, message("a", "s1"));
+        dispatcher.dispatch(METHOD, message("b", "s1"));
+        dispatcher.dispatch(METHOD, message("a", "s2"));
+        dispatcher.close();
+        assertEquals("b", queue.poll().params.get(0).asText());
+        StratumMessage latest = queue.poll();
+        assertEquals("a", latest.params.get(0).asText());
+        assertEquals("s2", latest.params.get(1).asText());
+        assertTrue(queue.poll().isSentinel());
+    }
+
+    @Test
+    public void dropOldest() {
+        dispatcher.setOverflowPolicy(METHOD, SubscriptionDispatcher.OverflowPolicy.DROP_OLDEST, 2);
+        BlockingQueue<StratumMessage> queue = dispatcher.getQueue(METHOD);
+        for (int i = 0 ; i < 5 ; i++)
+            dispatcher.dispatch(METHOD, message("a", "s" + i));
+        assertEquals(2, queue.size());
+        assertEquals("s3", queue.poll().params.get(1).asText());
+        assertEquals("s4", queue.poll().params.get(1).asText());
+    }
+
+    @Test
+    public void listener() {
+        final List<String> received = Lists.newArrayList();
+        SubscriptionDispatcher.Listener listener = new SubscriptionDispatcher.Listener() {
+            @Override
+            public void onMessage(StratumMessage message) {
+                received.add(message.params.get(1).asText());
+            }
+        };
+        dispatcher.addListener(METHOD, listener, MoreExecutors.directExecutor());
+        dispatcher.dispatch(METHOD, message("a", "s1"));
+        dispatcher.dispatch(METHOD, message("a", "s2"));
+        dispatcher.removeListener(METHOD, listener);
+        dispatcher.dispatch(METHOD, message("a", "s3"));
+        assertEquals(Lists.newArrayList("s1", "s2"), received);
+    }
+
+    @Test
+    public void keyedListener() throws Exception {
+        final List<String> received = Collections.synchronizedList(Lists.<String>newArrayList());
+        SubscriptionDispatcher.Listener listener = new SubscriptionDispatcher.Listener() {
+            @Override
+            public void onMessage(StratumMessage message) {
+                received.add(message.params.get(0).asText() + message.params.get(1).asText());
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        StripedExecutor executor = new StripedExecutor(pool, 4);
+        for (String key : new String[] {"a", "b", "c"})
+            dispatcher.addListener(METHOD, key, listener, executor.get(key));
+        BlockingQueue<StratumMessage> queue = dispatcher.getQueue(METHOD);
+        for (int i = 0 ; i < 100 ; i++) {
+            for (String key : new String[] {"a", "b", "c", "d"})
+                dispatcher.dispatch(METHOD, message(key, Integer.toString(i)));
+        }
+        assertTrue(executor.awaitIdle(10, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertEquals(300, received.size());
+        // Ordered for each key
+        for (String key : new String[] {"a", "b", "c"}) {
+            int next = 0;
+            for (String item : Lists.newArrayList(received)) {
+                if (item.startsWith(key))
+                    assertEquals(key + next++, item);
+            }
+        }
+        // Other keys still go to the queue
+        assertEquals(100, queue.size());
+    }
+}